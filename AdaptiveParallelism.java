@@ -0,0 +1,86 @@
+// AdaptiveParallelism.java: picks how many trials to run at once from measured throughput
+// COS 445 SD1, Spring 2019
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+// Hill-climbs the number of trials in flight between min and max. Every window of
+// completed trials it compares trials per second with the previous window: a
+// step that helped is repeated, one that hurt is reversed. When throughput is
+// flat, machine CPU load breaks the tie, backing off when the cores are
+// saturated (strategies running their own threads) and growing when they idle.
+class AdaptiveParallelism {
+  private static final double SIGNIFICANT = 0.05;
+  private static final double BUSY = 0.9;
+  private static final double IDLE = 0.7;
+
+  final int min;
+  final int max;
+  private int target;
+  private int direction = 1;
+  private double lastThroughput = -1;
+  private long windowStart;
+  private int windowCompleted;
+
+  AdaptiveParallelism(int min, int max) {
+    assert 1 <= min && min <= max : "Bad worker bounds " + min + ".." + max;
+    this.min = min;
+    this.max = max;
+    this.target = min;
+    startRun();
+  }
+
+  synchronized int target() {
+    return target;
+  }
+
+  // Time between batches of trials does not count against the next window
+  synchronized void startRun() {
+    windowStart = System.nanoTime();
+    windowCompleted = 0;
+  }
+
+  // Called whenever a trial finishes; returns the number of trials to keep in flight
+  synchronized int completed() {
+    ++windowCompleted;
+    if (windowCompleted < Math.max(4, 2 * target)) {
+      return target;
+    }
+    double seconds = (System.nanoTime() - windowStart) / 1e9;
+    double throughput = windowCompleted / Math.max(seconds, 1e-9);
+    double load = cpuLoad();
+    if (lastThroughput > 0) {
+      if (throughput < lastThroughput * (1 - SIGNIFICANT)) {
+        direction = -direction;
+      } else if (throughput <= lastThroughput * (1 + SIGNIFICANT)) {
+        if (load > BUSY) {
+          direction = -1;
+        } else if (load >= 0 && load < IDLE) {
+          direction = 1;
+        }
+      }
+    }
+    int next = Math.max(min, Math.min(max, target + direction * Math.max(1, target / 4)));
+    if (next != target) {
+      System.err.println(
+          String.format(
+              "workers: %d -> %d (%.2f trials/s, cpu %.0f%%)",
+              target, next, throughput, 100 * load));
+    }
+    target = next;
+    lastThroughput = throughput;
+    windowStart = System.nanoTime();
+    windowCompleted = 0;
+    return target;
+  }
+
+  // Whole-machine CPU load in [0, 1], or -1 if the JVM cannot tell
+  private static double cpuLoad() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+    }
+    double perCore = os.getSystemLoadAverage() / os.getAvailableProcessors();
+    return perCore < 0 ? -1 : Math.min(1, perCore);
+  }
+}
@@ -4,13 +4,14 @@
 
 import java.io.BufferedReader;
 import java.io.FileReader;
-import java.io.OutputStream;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 
@@ -40,7 +41,7 @@ public class Admissions extends Tournament<Student, AdmissionsConfig> {
         }
     }
 
-    private static boolean checkLegalStuPrefs(int max, int[] prefs, String netid) {
+    private static boolean checkLegalStuPrefs(int max, int[] prefs, String netid, SplittableRandom rand) {
         assert prefs.length == numApplications : netid + ": too many applications" + Arrays.toString(prefs);
         int j = 0, numRepeated = 0;
         while (j < numApplications) {
@@ -73,61 +74,188 @@ public class Admissions extends Tournament<Student, AdmissionsConfig> {
         return true;
     }
 
-    public double[] runTrial(List<Class<? extends Student>> strategies, AdmissionsConfig config) {
-        // config might randomize each time
-        final double S = config.getS();
-        final double T = config.getT();
-        final double W = config.getW();
-        List<Student> students = new ArrayList<Student>();
-        for (Class<? extends Student> studentClass : strategies) {
-            try {
-                students.add(studentClass.getDeclaredConstructor().newInstance());
-            } catch (ReflectiveOperationException roe) {
-                throw new RuntimeException(roe);
+    // One trial's randomly drawn aptitudes, schools and synergies
+    private static class Market {
+        final int N;
+        final double S, T, W;
+        final double[] aptitudes;
+        final double[] schools;
+        final double[][] synergies;
+        final List<Double> schoolList;
+        // the draws left after the market, for reroll streams
+        final SplittableRandom rand;
+
+        Market(int N, AdmissionsConfig config, long seed, boolean mirrored) {
+            this.N = N;
+            // config might randomize each time
+            S = config.getS();
+            T = config.getT();
+            W = config.getW();
+            // Initialize random variables
+            rand = new SplittableRandom(seed);
+            // |flip - u| is u, or 1 - u in the antithetic partner of this trial
+            final double flip = mirrored ? 1 : 0;
+            aptitudes = new double[N];
+            schools = new double[N];
+            synergies = new double[N][N];
+            for (int i = 0; i < N; ++i) {
+                aptitudes[i] = Math.abs(flip - rand.nextDouble()) * S;
+                schools[i] = Math.abs(flip - rand.nextDouble()) * T;
+                for (int j = 0; j < N; ++j) {
+                    synergies[i][j] = Math.abs(flip - rand.nextDouble()) * W;
+                }
             }
+            // Sort by decreasing order of school quality
+            Arrays.sort(schools);
+            for (int i = 0; i < N; ++i) {
+                schools[i] = T - schools[i];
+            }
+            schoolList = Collections.unmodifiableList(DoubleStream.of(schools).boxed().collect(Collectors.toList()));
         }
-        // Initialize random variables
-        double[] aptitudes = new double[students.size()];
-        double[] schools = new double[students.size()];
-        double[][] synergies = new double[students.size()][students.size()];
-        for (int i = 0; i < students.size(); ++i) {
-            aptitudes[i] = rand.nextDouble() * S;
-            schools[i] = rand.nextDouble() * T;
-            for (int j = 0; j < students.size(); ++j) {
-                synergies[i][j] = rand.nextDouble() * W;
+    }
+
+    // A call getting the applications of a studentClass student in position s, with
+    // anything the strategy prints dropped and illegal choices rerolled from reroll
+    private Callable<int[]> applications(Market m, Class<? extends Student> studentClass, int s,
+            SplittableRandom reroll) {
+        final String name = studentClass.getSimpleName();
+        return ThreadOutput.silenced(() -> {
+            int[] prefs;
+            if (processes == null) {
+                // really gross boxing code
+                prefs = newStrategy(studentClass).getApplications(m.N, m.S, m.T, m.W, m.aptitudes[s], m.schoolList,
+                        Collections.unmodifiableList(
+                                DoubleStream.of(m.synergies[s]).boxed().collect(Collectors.toList())));
+            } else {
+                // out-of-process strategies are built by their worker JVM instead
+                prefs = StrategyWorker.getApplications(processes, studentClass.getName(), getCallCpuBudgetMs(),
+                        getCallAllocationCapMb(), getTimeoutMs(), m.N, m.S, m.T, m.W, m.aptitudes[s], m.schools,
+                        m.synergies[s]);
             }
+            checkLegalStuPrefs(m.N, prefs, name, reroll);
+            return prefs;
+        });
+    }
+
+    public double[] runTrial(List<Class<? extends Student>> strategies, AdmissionsConfig config, long seed) {
+        return runTrial(strategies, config, seed, false);
+    }
+
+    @Override
+    public double[] runTrial(List<Class<? extends Student>> strategies, AdmissionsConfig config, long seed,
+            boolean mirrored) {
+        return runTrial(strategies, config, seed, mirrored, null);
+    }
+
+    @Override
+    protected boolean mirrorsDraws() {
+        return true;
+    }
+
+    // Every student still applies and is matched, but only the needed ones (all of
+    // them if needed is null) are scored. Every synergy row is still drawn: each
+    // is read by its student's strategy and by the matching.
+    @Override
+    public double[] runTrial(List<Class<? extends Student>> strategies, AdmissionsConfig config, long seed,
+            boolean mirrored, BitSet needed) {
+        final Market m = new Market(strategies.size(), config, seed, mirrored);
+        return match(m, applyAll(strategies, m), needed);
+    }
+
+    // Gets each student's choices of schools to which to apply, all at once
+    private int[][] applyAll(List<Class<? extends Student>> strategies, Market m) {
+        // Each student's replacement applications come from its own stream
+        SplittableRandom[] rerolls = new SplittableRandom[m.N];
+        for (int i = 0; i < m.N; ++i) {
+            rerolls[i] = m.rand.split();
         }
-        // Sort by decreasing order of school quality
-        Arrays.sort(schools);
-        for (int i = 0; i < students.size(); ++i) {
-            schools[i] = T - schools[i];
+
+        List<String> names = new ArrayList<>();
+        List<Callable<int[]>> calls = new ArrayList<>();
+        for (int stu = 0; stu < m.N; ++stu) {
+            names.add(strategies.get(stu).getSimpleName());
+            calls.add(applications(m, strategies.get(stu), stu, rerolls[stu]));
         }
+        // arbitrary application if code throws exception
+        return runAllWithTimeout(names, calls, new int[] {}).toArray(new int[0][]);
+    }
 
-        // Get each student's choices of schools to which to apply
-        int[][] stuPrefs = new int[students.size()][];
-        PrintStream stdout = System.out;
-        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
-        for (int stu = 0; stu < stuPrefs.length; ++stu) {
-            // System.err.println(students.get(stu).getClass().getSimpleName());
-            // really gross boxing code
-            final int s = stu;
-            try {
-                runWithTimeout(students.get(stu).getClass().getSimpleName(), () -> {
-                    stuPrefs[s] = students.get(s).getApplications(students.size(), S, T, W, aptitudes[s],
-                            Collections.unmodifiableList(DoubleStream.of(schools).boxed().collect(Collectors.toList())),
-                            Collections.unmodifiableList(
-                                    DoubleStream.of(synergies[s]).boxed().collect(Collectors.toList())));
-                    checkLegalStuPrefs(students.size(), stuPrefs[s], students.get(s).getClass().getSimpleName());
-                    return 0;
-                }, 10000);
+    @Override
+    protected StagedTrial<Market, int[][]> stagedTrial(List<Class<? extends Student>> strategies,
+            AdmissionsConfig config) {
+        return new StagedTrial<Market, int[][]>() {
+            public Market generate(int trial, long seed, boolean mirrored) {
+                return new Market(strategies.size(), config, seed, mirrored);
+            }
+
+            public int[][] play(Market m) {
+                return applyAll(strategies, m);
+            }
 
-            } catch (Exception e) {
-                System.err.println(e);
-                // arbitrary application if code throws exception
-                stuPrefs[stu] = new int[] {};
+            public double[] settle(Market m, int[][] stuPrefs) {
+                return match(m, stuPrefs, null);
             }
+        };
+    }
+
+    // Calls every incumbent once and the candidate once per position, all on one
+    // market, then reruns only the matching for each substitution. A candidate
+    // needing rerolls draws them from its own stream, so only then can a
+    // position's score differ from a whole trial with the candidate there.
+    @Override
+    protected double[] replacementTrial(List<Class<? extends Student>> strategies, Class<? extends Student> clazz,
+            AdmissionsConfig config, long seed, boolean mirrored) {
+        return replacements(strategies, clazz, config, seed, mirrored, false)[1];
+    }
+
+    // As replacementTrial, with the room as it is matched on the same incumbent
+    // applications, so that the pair costs no more strategy calls than its second half
+    @Override
+    protected double[][] pairedReplacementTrial(List<Class<? extends Student>> strategies,
+            Class<? extends Student> clazz, AdmissionsConfig config, long seed, boolean mirrored) {
+        return replacements(strategies, clazz, config, seed, mirrored, true);
+    }
+
+    // The room's scores (if withBase) and the candidate's score at each position
+    private double[][] replacements(List<Class<? extends Student>> strategies, Class<? extends Student> clazz,
+            AdmissionsConfig config, long seed, boolean mirrored, boolean withBase) {
+        final Market m = new Market(strategies.size(), config, seed, mirrored);
+        SplittableRandom[] rerolls = new SplittableRandom[m.N];
+        for (int i = 0; i < m.N; ++i) {
+            rerolls[i] = m.rand.split();
         }
-        System.setOut(stdout);
+
+        List<String> names = new ArrayList<>();
+        List<Callable<int[]>> calls = new ArrayList<>();
+        for (int stu = 0; stu < m.N; ++stu) {
+            names.add(strategies.get(stu).getSimpleName());
+            calls.add(applications(m, strategies.get(stu), stu, rerolls[stu]));
+        }
+        for (int stu = 0; stu < m.N; ++stu) {
+            names.add(clazz.getSimpleName());
+            calls.add(applications(m, clazz, stu, m.rand.split()));
+        }
+        final int[][] all = runAllWithTimeout(names, calls, new int[] {}).toArray(new int[0][]);
+        double[][] ret = new double[2][];
+        if (withBase) {
+            ret[0] = match(m, Arrays.copyOf(all, m.N), null);
+        }
+        ret[1] = new double[m.N];
+        for (int i = 0; i < m.N; ++i) {
+            int[][] stuPrefs = Arrays.copyOf(all, m.N);
+            stuPrefs[i] = all[m.N + i];
+            ret[1][i] = match(m, stuPrefs, Tournament.only(i))[i];
+        }
+        return ret;
+    }
+
+    // Runs the matching for one set of applications and scores the needed students
+    // (all of them if needed is null)
+    private static double[] match(Market m, int[][] stuPrefs, BitSet needed) {
+        final int N = m.N;
+        final double[] schools = m.schools;
+        final double[] aptitudes = m.aptitudes;
+        final double[][] synergies = m.synergies;
 
         // Build university preference lists filtered by applications
         ArrayList<TreeSet<StudentPair>> uniPrefTrees = new ArrayList<TreeSet<StudentPair>>();
@@ -145,9 +273,9 @@ public class Admissions extends Tournament<Student, AdmissionsConfig> {
         }
 
         // Initially everyone is not matched
-        int[] stuUnis = new int[students.size()];
-        int[] uniStus = new int[students.size()];
-        for (int i = 0; i < students.size(); ++i) {
+        int[] stuUnis = new int[N];
+        int[] uniStus = new int[N];
+        for (int i = 0; i < N; ++i) {
             stuUnis[i] = uniStus[i] = -1;
         }
         boolean flag = true;
@@ -175,9 +303,9 @@ public class Admissions extends Tournament<Student, AdmissionsConfig> {
 
         // Students are rewarded with a point for every school they weakly prefer their
         // result to
-        double[] ret = new double[students.size()];
-        for (int stu = 0; stu < students.size(); ++stu) {
-            if (stuUnis[stu] != -1) {
+        double[] ret = new double[N];
+        for (int stu = 0; stu < N; ++stu) {
+            if (stuUnis[stu] != -1 && (needed == null || needed.get(stu))) {
                 double res = schools[stuUnis[stu]] + synergies[stu][stuUnis[stu]];
                 for (int uni = 0; uni < schools.length; ++uni) {
                     if (schools[uni] + synergies[stu][uni] <= res) {
@@ -187,11 +315,95 @@ public class Admissions extends Tournament<Student, AdmissionsConfig> {
             }
         }
         for (int i = 0; i < ret.length; ++i) {
-            ret[i] /= strategies.size();
+            ret[i] /= N;
         }
         return ret;
     }
 
+    @Override
+    protected String workerMainClass() {
+        return "StrategyWorker";
+    }
+
+    // Averages each trial's scores over the copies of each netID and keeps running
+    // statistics of those averages, printing the standings every `every` trials
+    static Tournament.TrialListener leaderboard(List<String> strategyNames, int every) {
+        final List<String> netIDs = new ArrayList<>();
+        final int[] slot = new int[strategyNames.size()];
+        for (int i = 0; i < slot.length; ++i) {
+            String name = strategyNames.get(i).substring(8);
+            if (!netIDs.contains(name)) {
+                netIDs.add(name);
+            }
+            slot[i] = netIDs.indexOf(name);
+        }
+        final int[] copies = new int[netIDs.size()];
+        for (int s : slot) {
+            copies[s]++;
+        }
+        final RunningStats stats = new RunningStats(netIDs.size());
+        return (trial, scores) -> {
+            double[] byNetID = new double[netIDs.size()];
+            for (int i = 0; i < slot.length; ++i) {
+                byNetID[slot[i]] += scores[i] / copies[slot[i]];
+            }
+            if (stats.add(byNetID) % every == 0) {
+                stats.printLeaderboard(System.err, netIDs);
+            }
+        };
+    }
+
+    // Plays numTrials trials in each room of a league drawn from the distinct
+    // strategies in strategyNames and prints each one's results over its rooms
+    static void playLeague(List<String> strategyNames, int roomSize, int rounds, int numTrials,
+            AdmissionsConfig config) {
+        assert roomSize >= numApplications : "Rooms must hold at least 10 strategies";
+        final List<String> pool = strategyNames.stream().distinct().collect(Collectors.toList());
+        final Admissions league = new Admissions(pool);
+        league.configureFromProperties();
+        // -DrankingConfidence=c keeps adding rooms for strategies whose rank is in
+        // doubt until the whole ranking holds with confidence c, or for at most
+        // -DmaxRacingRounds more rounds (c allows for checking after each of them);
+        // pairs whose scores surely differ by less than -DrankingTolerance count as ties
+        final double confidence = Double.parseDouble(System.getProperty("rankingConfidence", "0"));
+        // -DleagueResults=file keeps each room's results and the seed there, and
+        // replays only the rooms of strategies that changed since the last run;
+        // a -Dseed other than the saved one starts the league over
+        final String results = System.getProperty("leagueResults");
+        if (results != null && confidence > 0) {
+            throw new RuntimeException("league: -DleagueResults cannot be combined with -DrankingConfidence");
+        }
+        // with stored results, the plan is made from their rooms (and their seed,
+        // which configureFromProperties took)
+        final League plan = league.newLeague(roomSize, results != null ? 0 : rounds);
+        final League.Standings res = results != null
+                ? league.incrementalLeagueTrials(results, plan, rounds, numTrials, config)
+                : confidence > 0
+                ? league.racingLeagueTrials(plan, numTrials, confidence,
+                        Double.parseDouble(System.getProperty("rankingTolerance", "0.01")),
+                        Integer.getInteger("maxRacingRounds", 10), config)
+                : league.leagueTrials(plan, numTrials, config);
+        System.err.println(plan.rooms().size() + " rooms of " + roomSize + " from " + pool.size()
+                + " strategies");
+        System.out.print("S = " + config.getS());
+        System.out.print(", T = " + config.getT());
+        System.out.println(", W = " + config.getW());
+        System.out.println("netID,score,fraction of mean,std error,rooms");
+        for (int i = 0; i < pool.size(); ++i) {
+            System.out.println(pool.get(i).substring(8) + "," + Double.toString(res.mean[i]) + ","
+                    + Double.toString(res.fractionOfMean[i]) + "," + Double.toString(res.stdError[i]) + ","
+                    + plan.appearances(i));
+        }
+        if (!league.getHealth().allHealthy()) {
+            System.out.println();
+            league.getHealth().printReport(System.out);
+        }
+        league.getHealth().printUsage(System.err);
+        if (league.getTrialCache() != null) {
+            System.err.println(league.getTrialCache());
+        }
+    }
+
     public static void main(String[] args) throws java.io.FileNotFoundException {
         assert args.length >= 1 : "Expected filename of strategies as first argument";
         final int numTrials = 30;
@@ -199,14 +411,33 @@ public class Admissions extends Tournament<Student, AdmissionsConfig> {
         final BufferedReader namesFile = new BufferedReader(new FileReader(args[0]));
         final List<String> strategyNames = namesFile.lines().map(s -> String.format("Student_%s", s))
                 .collect(Collectors.toList());
+        // -DroomSize=k plays a league instead: rooms of k strategies drawn from
+        // those in the file, planned for -DleagueRounds rounds (1 by default)
+        final int roomSize = Integer.getInteger("roomSize", 0);
+        if (roomSize > 0) {
+            playLeague(strategyNames, roomSize, Integer.getInteger("leagueRounds", 1), numTrials, config);
+            return;
+        }
         final int N = strategyNames.size();
         assert N >= numApplications : "Must have at least 10 strategies in students.txt!";
         // each strategy in the sample room with the sample strategies (not a component
         // of the grade,
         // just for overfitting comparisons)
         final Admissions withStrategies = new Admissions(strategyNames);
+        // harness options such as -Dworkers and -Dseed; see Tournament.configureFromProperties
+        withStrategies.configureFromProperties();
+        // -DreportEvery=k prints a leaderboard with 95% confidence intervals to stderr
+        // every k trials while the run continues
+        final int reportEvery = Integer.getInteger("reportEvery", 0);
+        final Tournament.TrialListener leaderboard = reportEvery > 0 ? leaderboard(strategyNames, reportEvery)
+                : null;
+        if (leaderboard != null) {
+            withStrategies.addListener(leaderboard);
+        }
 
         double[] res = withStrategies.oneEachTrials(numTrials, config);
+        // the leaderboard reads score vectors, not the paired differences below
+        withStrategies.removeListener(leaderboard);
         double avgScore = 0;
         for (int i = 0; i < N; i++) {
             avgScore += res[i];
@@ -233,5 +464,32 @@ public class Admissions extends Tournament<Student, AdmissionsConfig> {
         }
         System.out.println(prevName + "," + Double.toString(cumScore / stratCount) + ","
                 + Double.toString(cumScore / (avgScore * stratCount)));
+        // -Dcandidate=netID pits that strategy against each one it could replace, on
+        // the same markets, and reports the differences with their standard errors
+        final String candidate = System.getProperty("candidate");
+        if (candidate != null) {
+            final Class<? extends Student> clazz;
+            try {
+                clazz = Class.forName("Student_" + candidate, true, withStrategies.strategyLoader)
+                        .asSubclass(Student.class);
+            } catch (ReflectiveOperationException roe) {
+                throw new RuntimeException(roe);
+            }
+            double[][] diffs = withStrategies.pairedReplacementTrials(clazz, numTrials, config);
+            System.out.println();
+            System.out.println("position,incumbent," + candidate + " minus incumbent,std error");
+            for (int i = 0; i != N; ++i) {
+                System.out.println(i + "," + strategyNames.get(i).substring(8) + "," + Double.toString(diffs[0][i])
+                        + "," + Double.toString(diffs[1][i]));
+            }
+        }
+        if (!withStrategies.getHealth().allHealthy()) {
+            System.out.println();
+            withStrategies.getHealth().printReport(System.out);
+        }
+        withStrategies.getHealth().printUsage(System.err);
+        if (withStrategies.getTrialCache() != null) {
+            System.err.println(withStrategies.getTrialCache());
+        }
     }
 }
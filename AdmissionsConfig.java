@@ -23,4 +23,9 @@ public class AdmissionsConfig {
   public double getW() {
     return _W;
   }
+
+  @Override
+  public String toString() {
+    return "S = " + _S + ", T = " + _T + ", W = " + _W;
+  }
 }
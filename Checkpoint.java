@@ -0,0 +1,243 @@
+// Checkpoint.java: saves a tournament's progress so an interrupted run can resume
+// COS 445 SD1, Spring 2019
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Each batch of trials a tournament runs keeps its exact sums and the set of
+// trials already added to them. Every trial's randomness comes from the seed,
+// the batch and the trial's index, so a checkpoint only needs the seed, those
+// sets and sums, and the quarantined strategies to pick up where it stopped:
+// a resumed run skips the trials it has and gives the same totals as one that
+// was never interrupted. The file is
+//   int magic, long seed, int quarantined, that many UTF names, int batches,
+//   then per batch: long key, int listened, int words, that many longs of the
+//   done set, int decisions, that many ints, and the sums as ScoreSums.write
+//   lays them out
+class Checkpoint {
+  private static final int MAGIC = 0x53443143; // "SD1C"
+
+  // One batch's progress
+  static class Batch {
+    final ScoreSums sums;
+    // leading columns listeners see; the rest are bookkeeping
+    final int listened;
+    private final BitSet done;
+    // where runTrialsUntil decided to run to after each look at the sums; a
+    // resumed run replays these, as its sums may already hold later trials
+    private final List<Integer> decisions;
+
+    Batch(int width, int listened) {
+      this(new ScoreSums(width), listened, new BitSet(), new ArrayList<>());
+    }
+
+    private Batch(ScoreSums sums, int listened, BitSet done, List<Integer> decisions) {
+      this.sums = sums;
+      this.listened = listened;
+      this.done = done;
+      this.decisions = decisions;
+    }
+
+    // The ith decision, or null if the run has not got that far
+    synchronized Integer decision(int i) {
+      return i < decisions.size() ? decisions.get(i) : null;
+    }
+
+    synchronized void decide(int end) {
+      decisions.add(end);
+    }
+
+    synchronized boolean isDone(int trial) {
+      return done.get(trial);
+    }
+
+    synchronized void record(int trial, double[] scores) {
+      sums.add(scores);
+      done.set(trial);
+    }
+
+    private synchronized void write(DataOutputStream out) throws IOException {
+      out.writeInt(listened);
+      long[] words = done.toLongArray();
+      out.writeInt(words.length);
+      for (long word : words) {
+        out.writeLong(word);
+      }
+      out.writeInt(decisions.size());
+      for (int end : decisions) {
+        out.writeInt(end);
+      }
+      sums.write(out);
+    }
+
+    private static Batch read(DataInputStream in) throws IOException {
+      int listened = in.readInt();
+      long[] words = new long[in.readInt()];
+      for (int i = 0; i < words.length; ++i) {
+        words[i] = in.readLong();
+      }
+      List<Integer> decisions = new ArrayList<>();
+      for (int i = in.readInt(); i > 0; --i) {
+        decisions.add(in.readInt());
+      }
+      return new Batch(ScoreSums.read(in), listened, BitSet.valueOf(words), decisions);
+    }
+  }
+
+  private final Path path;
+  private final long intervalNanos;
+  private final Map<Long, Batch> batches = new TreeMap<>();
+  private final List<String> quarantined = new ArrayList<>();
+  private long seed;
+  private boolean restored = false;
+  private long lastSave = System.nanoTime();
+
+  // Loads path if it exists; saves at most every intervalMs while trials finish
+  Checkpoint(Path path, long intervalMs) {
+    this.path = path;
+    this.intervalNanos = intervalMs * 1000000;
+    if (Files.exists(path)) {
+      try (InputStream file = Files.newInputStream(path);
+          DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+        if (in.readInt() != MAGIC) {
+          throw new RuntimeException(path + ": not a checkpoint");
+        }
+        seed = in.readLong();
+        for (int i = in.readInt(); i > 0; --i) {
+          quarantined.add(in.readUTF());
+        }
+        for (int i = in.readInt(); i > 0; --i) {
+          long key = in.readLong();
+          batches.put(key, Batch.read(in));
+        }
+        restored = true;
+      } catch (IOException e) {
+        throw new RuntimeException(path + ": read checkpoint", e);
+      }
+    }
+  }
+
+  // Whether an earlier run's progress was loaded
+  boolean restored() {
+    return restored;
+  }
+
+  // The seed of the restored run
+  long seed() {
+    return seed;
+  }
+
+  List<String> quarantined() {
+    return quarantined;
+  }
+
+  // The progress of batch key, restored if an earlier run got to it
+  synchronized Batch batch(long key, int width, int listened) {
+    Batch ret = batches.get(key);
+    if (ret == null) {
+      ret = new Batch(width, listened);
+      batches.put(key, ret);
+    } else if (ret.sums.width() != width || ret.listened != listened) {
+      throw new RuntimeException(path + ": batch " + key + " does not match this run");
+    }
+    return ret;
+  }
+
+  // Saves if intervalMs has passed since the last save
+  void maybeSave(long seed, StrategyHealth health) {
+    synchronized (this) {
+      if (System.nanoTime() - lastSave < intervalNanos) {
+        return;
+      }
+    }
+    save(seed, health);
+  }
+
+  synchronized void save(long seed, StrategyHealth health) {
+    this.seed = seed;
+    write(health.quarantined());
+  }
+
+  // Writes everything to a temporary file and moves it over the old checkpoint,
+  // so a crash mid-save leaves the previous one intact
+  private void write(List<String> names) {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (OutputStream file = Files.newOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+      out.writeInt(MAGIC);
+      out.writeLong(seed);
+      out.writeInt(names.size());
+      for (String name : names) {
+        out.writeUTF(name);
+      }
+      out.writeInt(batches.size());
+      for (Map.Entry<Long, Batch> e : batches.entrySet()) {
+        out.writeLong(e.getKey());
+        e.getValue().write(out);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(tmp + ": write checkpoint", e);
+    }
+    try {
+      Files.move(
+          tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new RuntimeException(path + ": replace checkpoint", e);
+    }
+    lastSave = System.nanoTime();
+  }
+
+  // Adds up checkpoints of shards of one run into out. The shards must share a
+  // seed and must not have run the same trial twice; exact sums make the merged
+  // totals the same as one process running every trial.
+  static void merge(Path out, List<Path> shards) {
+    Checkpoint merged = new Checkpoint(out, 0);
+    if (merged.restored) {
+      throw new RuntimeException(out + ": already exists");
+    }
+    List<String> quarantined = new ArrayList<>();
+    for (Path shard : shards) {
+      Checkpoint c = new Checkpoint(shard, 0);
+      if (!c.restored) {
+        throw new RuntimeException(shard + ": no checkpoint");
+      }
+      if (shard.equals(shards.get(0))) {
+        merged.seed = c.seed;
+      } else if (c.seed != merged.seed) {
+        throw new RuntimeException(shard + ": seed " + c.seed + ", expected " + merged.seed);
+      }
+      for (String name : c.quarantined) {
+        if (!quarantined.contains(name)) {
+          quarantined.add(name);
+        }
+      }
+      for (Map.Entry<Long, Batch> e : c.batches.entrySet()) {
+        Batch from = e.getValue();
+        Batch to = merged.batch(e.getKey(), from.sums.width(), from.listened);
+        if (to.done.intersects(from.done)) {
+          throw new RuntimeException(shard + ": batch " + e.getKey() + " overlaps another shard");
+        }
+        if (!from.decisions.isEmpty()) {
+          throw new RuntimeException(shard + ": stopping rule decisions cannot be merged");
+        }
+        to.sums.addAll(from.sums);
+        to.done.or(from.done);
+      }
+    }
+    quarantined.sort(null);
+    merged.write(quarantined);
+  }
+}
@@ -0,0 +1,608 @@
+// Fingerprint.java: hashes of strategy bytecode, for telling when a strategy has changed
+// COS 445 SD1, Spring 2019
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+// A strategy's fingerprint is a SHA-256 of its class file together with those
+// of the classes it uses that belong to strategies: its own nested classes and
+// other strategies' (Student_liamKen, say, calls Student_liamdj), found through
+// the constant pools, transitively. Strategies are told apart from the harness
+// by name: a class belongs to a strategy if its name has the same prefix, up
+// to the first '_', as the strategy's. Each class file is hashed in a canonical
+// form (see canonical): without its debug attributes (line numbers, local
+// variable names and the source file), and with constant pool references
+// written out, so that the pool's numbering does not matter. Editing only
+// comments or spacing, or recompiling a strategy unchanged, keeps its
+// fingerprint, and so does compiling with or without -g, except that -g also
+// makes javac keep constant locals like `final int N = 56` in variables, which
+// changes the code of the methods that have them.
+class Fingerprint {
+  // attributes that only say where things are in the source
+  private static final Set<String> DEBUG_ATTRIBUTES =
+      Set.of(
+          "SourceFile",
+          "SourceDebugExtension",
+          "LineNumberTable",
+          "LocalVariableTable",
+          "LocalVariableTypeTable");
+
+  private static final ClassValue<String> fingerprints =
+      new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+          return compute(type);
+        }
+      };
+
+  private static final ClassValue<String> harnesses =
+      new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+          // the classes in the default package that are no strategy's, and not
+          // arrays of primitives like [D
+          return compute(
+              type,
+              used -> !used.contains("_") && !used.contains("/") && !used.startsWith("["));
+        }
+      };
+
+  static String of(Class<?> clazz) {
+    return fingerprints.get(clazz);
+  }
+
+  // The same for the harness that runs trials, from a tournament's class:
+  // it, Tournament and the rest of the harness it uses, but no strategies
+  static String ofHarness(Class<?> tournament) {
+    return harnesses.get(tournament);
+  }
+
+  private static String compute(Class<?> clazz) {
+    String name = clazz.getName();
+    String prefix = name.substring(0, name.indexOf('_') + 1);
+    if (prefix.isEmpty()) {
+      throw new RuntimeException(name + ": strategy names must contain a '_'");
+    }
+    return compute(clazz, used -> used.startsWith(prefix) && !used.contains("/"));
+  }
+
+  // A hash of clazz's class file and those of the classes it uses that
+  // belong, transitively
+  private static String compute(Class<?> clazz, Predicate<String> belongs) {
+    String name = clazz.getName();
+    TreeSet<String> seen = new TreeSet<>();
+    List<String> todo = new ArrayList<>(List.of(name));
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      while (!todo.isEmpty()) {
+        String next = todo.remove(todo.size() - 1);
+        if (!seen.add(next)) {
+          continue;
+        }
+        byte[] bytes = classFile(clazz.getClassLoader(), next);
+        for (String used : classesUsed(bytes)) {
+          // array classes are named like [[LStudent_holist$School;
+          used = used.replaceAll("^\\[+L(.*);$", "$1");
+          if (belongs.test(used)) {
+            todo.add(used);
+          }
+        }
+      }
+      // in name order, so that the hash does not depend on the order found
+      for (String used : seen) {
+        sha.update(used.getBytes(StandardCharsets.UTF_8));
+        sha.update((byte) 0);
+        sha.update(canonical(classFile(clazz.getClassLoader(), used)));
+      }
+      StringBuilder ret = new StringBuilder();
+      for (byte b : sha.digest()) {
+        ret.append(String.format("%02x", b));
+      }
+      return ret.toString();
+    } catch (IOException e) {
+      throw new RuntimeException(name + ": fingerprint", e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-256", e);
+    }
+  }
+
+  private static byte[] classFile(ClassLoader loader, String name) throws IOException {
+    try (InputStream in = loader.getResourceAsStream(name + ".class")) {
+      if (in == null) {
+        throw new IOException(name + ".class: not found");
+      }
+      return in.readAllBytes();
+    }
+  }
+
+  // Names of the classes in a class file's constant pool
+  private static List<String> classesUsed(byte[] classFile) throws IOException {
+    ClassFile parsed = new ClassFile(classFile);
+    List<String> ret = new ArrayList<>();
+    for (int i = 1; i < parsed.tags.length; ++i) {
+      if (parsed.tags[i] == CLASS) {
+        ret.add((String) parsed.values[parsed.first[i]]);
+      }
+    }
+    return ret;
+  }
+
+  // classFile without its debug attributes and with every constant pool
+  // reference written out as what it refers to. The same code then gives the
+  // same bytes however javac numbered its pool: with -g it adds the names of
+  // local variables to the pool, in among the entries it always has.
+  static byte[] canonical(byte[] classFile) throws IOException {
+    ClassFile parsed = new ClassFile(classFile);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    parsed.out = new DataOutputStream(bytes);
+    parsed.body();
+    parsed.out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static final int UTF8 = 1, CLASS = 7, LONG = 5, DOUBLE = 6;
+
+  // A class file's constant pool, and the rest of it read from in and written
+  // out canonically
+  private static class ClassFile {
+    final DataInputStream in;
+    DataOutputStream out;
+    // each entry's tag and value: a String for Utf8, a Long for numbers, or
+    // for the others the entries (or other operands) in first and second
+    final int[] tags;
+    final Object[] values;
+    final int[] first;
+    final int[] second;
+
+    ClassFile(byte[] classFile) throws IOException {
+      in = new DataInputStream(new ByteArrayInputStream(classFile));
+      if (in.readInt() != 0xcafebabe) {
+        throw new IOException("not a class file");
+      }
+      in.readUnsignedShort(); // minor version
+      in.readUnsignedShort(); // major version
+      int count = in.readUnsignedShort();
+      tags = new int[count];
+      values = new Object[count];
+      first = new int[count];
+      second = new int[count];
+      for (int i = 1; i < count; ++i) {
+        int tag = in.readUnsignedByte();
+        tags[i] = tag;
+        switch (tag) {
+          case UTF8:
+            values[i] = in.readUTF();
+            break;
+          case 3: // Integer
+          case 4: // Float
+            values[i] = (long) in.readInt();
+            break;
+          case LONG:
+          case DOUBLE:
+            values[i] = in.readLong();
+            ++i; // takes two entries
+            break;
+          case CLASS:
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            first[i] = in.readUnsignedShort();
+            break;
+          case 15: // MethodHandle: reference kind and entry
+            first[i] = in.readUnsignedByte();
+            second[i] = in.readUnsignedShort();
+            break;
+          case 9: // Fieldref
+          case 10: // Methodref
+          case 11: // InterfaceMethodref
+          case 12: // NameAndType
+          case 17: // Dynamic: bootstrap method and NameAndType
+          case 18: // InvokeDynamic: likewise
+            first[i] = in.readUnsignedShort();
+            second[i] = in.readUnsignedShort();
+            break;
+          default:
+            throw new IOException("bad constant pool tag " + tag);
+        }
+      }
+    }
+
+    // Writes out entry i in full; 0 stands for none, e.g. Object's superclass
+    private void constant(int i) throws IOException {
+      int tag = tags[i];
+      out.writeByte(tag);
+      switch (tag) {
+        case 0:
+          break;
+        case UTF8:
+          out.writeUTF((String) values[i]);
+          break;
+        case 3:
+        case 4:
+        case LONG:
+        case DOUBLE:
+          out.writeLong((Long) values[i]);
+          break;
+        case 15:
+          out.writeByte(first[i]);
+          constant(second[i]);
+          break;
+        case 17:
+        case 18:
+          out.writeShort(first[i]);
+          constant(second[i]);
+          break;
+        case 9:
+        case 10:
+        case 11:
+        case 12:
+          constant(first[i]);
+          constant(second[i]);
+          break;
+        default:
+          constant(first[i]);
+      }
+    }
+
+    private void constant(DataInputStream in) throws IOException {
+      constant(in.readUnsignedShort());
+    }
+
+    private void copy(DataInputStream in, int length) throws IOException {
+      byte[] buf = new byte[length];
+      in.readFully(buf);
+      out.write(buf);
+    }
+
+    // Everything after the constant pool
+    void body() throws IOException {
+      copy(in, 2); // access flags
+      constant(in); // this class
+      constant(in); // superclass
+      int interfaces = in.readUnsignedShort();
+      out.writeShort(interfaces);
+      for (int i = 0; i < interfaces; ++i) {
+        constant(in);
+      }
+      for (int members = 0; members < 2; ++members) { // fields, then methods
+        int count = in.readUnsignedShort();
+        out.writeShort(count);
+        for (int i = 0; i < count; ++i) {
+          copy(in, 2); // access flags
+          constant(in); // name
+          constant(in); // descriptor
+          attributes(in);
+        }
+      }
+      attributes(in);
+    }
+
+    // A table of attributes, leaving out the debug ones
+    private void attributes(DataInputStream in) throws IOException {
+      List<String> names = new ArrayList<>();
+      List<byte[]> contents = new ArrayList<>();
+      for (int i = in.readUnsignedShort(); i > 0; --i) {
+        String name = (String) values[in.readUnsignedShort()];
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        if (!DEBUG_ATTRIBUTES.contains(name)) {
+          names.add(name);
+          contents.add(content);
+        }
+      }
+      out.writeShort(names.size());
+      for (int i = 0; i < names.size(); ++i) {
+        out.writeUTF(names.get(i));
+        attribute(
+            names.get(i), new DataInputStream(new ByteArrayInputStream(contents.get(i))));
+      }
+    }
+
+    private void attribute(String name, DataInputStream in) throws IOException {
+      switch (name) {
+        case "ConstantValue":
+        case "Signature":
+        case "NestHost":
+          constant(in);
+          break;
+        case "Exceptions":
+        case "NestMembers":
+        case "PermittedSubclasses":
+          for (int i = in.readUnsignedShort(); i > 0; --i) {
+            constant(in);
+          }
+          break;
+        case "InnerClasses":
+          for (int i = in.readUnsignedShort(); i > 0; --i) {
+            constant(in); // inner class
+            constant(in); // outer class
+            constant(in); // simple name
+            copy(in, 2); // access flags
+          }
+          break;
+        case "EnclosingMethod":
+          constant(in); // class
+          constant(in); // method's NameAndType
+          break;
+        case "BootstrapMethods":
+          for (int i = in.readUnsignedShort(); i > 0; --i) {
+            constant(in); // method handle
+            for (int j = in.readUnsignedShort(); j > 0; --j) {
+              constant(in);
+            }
+          }
+          break;
+        case "MethodParameters":
+          for (int i = in.readUnsignedByte(); i > 0; --i) {
+            constant(in); // name
+            copy(in, 2); // access flags
+          }
+          break;
+        case "Record":
+          for (int i = in.readUnsignedShort(); i > 0; --i) {
+            constant(in); // name
+            constant(in); // descriptor
+            attributes(in);
+          }
+          break;
+        case "RuntimeVisibleAnnotations":
+        case "RuntimeInvisibleAnnotations":
+          annotations(in);
+          break;
+        case "RuntimeVisibleParameterAnnotations":
+        case "RuntimeInvisibleParameterAnnotations":
+          for (int i = in.readUnsignedByte(); i > 0; --i) {
+            annotations(in);
+          }
+          break;
+        case "RuntimeVisibleTypeAnnotations":
+        case "RuntimeInvisibleTypeAnnotations":
+          for (int i = in.readUnsignedShort(); i > 0; --i) {
+            typeAnnotation(in);
+          }
+          break;
+        case "AnnotationDefault":
+          elementValue(in);
+          break;
+        case "StackMapTable":
+          stackMapTable(in);
+          break;
+        case "Code":
+          code(in);
+          break;
+        default:
+          // Deprecated, Synthetic and the like, which name no entries
+          copy(in, in.available());
+      }
+    }
+
+    private void code(DataInputStream in) throws IOException {
+      copy(in, 4); // max stack and max locals
+      byte[] code = new byte[in.readInt()];
+      in.readFully(code);
+      instructions(code);
+      for (int i = in.readUnsignedShort(); i > 0; --i) {
+        copy(in, 6); // start, end and handler
+        constant(in); // exception class
+      }
+      attributes(in);
+    }
+
+    // Copies bytecode, writing out the entries that instructions refer to
+    private void instructions(byte[] code) throws IOException {
+      out.writeInt(code.length);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(code));
+      int pc = 0;
+      while (pc < code.length) {
+        int op = in.readUnsignedByte();
+        out.writeByte(op);
+        int start = pc;
+        pc += 1;
+        switch (op) {
+          case 0x12: // ldc
+            constant(in.readUnsignedByte());
+            pc += 1;
+            break;
+          case 0x13: // ldc_w
+          case 0x14: // ldc2_w
+          case 0xb2: // getstatic
+          case 0xb3: // putstatic
+          case 0xb4: // getfield
+          case 0xb5: // putfield
+          case 0xb6: // invokevirtual
+          case 0xb7: // invokespecial
+          case 0xb8: // invokestatic
+          case 0xbb: // new
+          case 0xbd: // anewarray
+          case 0xc0: // checkcast
+          case 0xc1: // instanceof
+            constant(in);
+            pc += 2;
+            break;
+          case 0xb9: // invokeinterface: entry, count, 0
+          case 0xba: // invokedynamic: entry, 0, 0
+            constant(in);
+            copy(in, 2);
+            pc += 4;
+            break;
+          case 0xc5: // multianewarray: entry, dimensions
+            constant(in);
+            copy(in, 1);
+            pc += 3;
+            break;
+          case 0xaa: // tableswitch
+          case 0xab: // lookupswitch
+            {
+              int padding = (4 - (start + 1) % 4) % 4;
+              copy(in, padding);
+              int fallback = in.readInt();
+              out.writeInt(fallback);
+              int length;
+              if (op == 0xaa) {
+                int low = in.readInt();
+                int high = in.readInt();
+                out.writeInt(low);
+                out.writeInt(high);
+                length = 4 * (high - low + 1);
+              } else {
+                int pairs = in.readInt();
+                out.writeInt(pairs);
+                length = 8 * pairs;
+              }
+              copy(in, length);
+              pc += padding + (op == 0xaa ? 12 : 8) + length;
+            }
+            break;
+          case 0xc4: // wide
+            {
+              int wide = in.readUnsignedByte();
+              out.writeByte(wide);
+              int length = wide == 0x84 ? 4 : 2; // iinc takes a constant too
+              copy(in, length);
+              pc += 1 + length;
+            }
+            break;
+          default:
+            int length = operandLength(op);
+            copy(in, length);
+            pc += length;
+        }
+      }
+    }
+
+    private static int operandLength(int op) {
+      if (op == 0x10 || op == 0xbc || op == 0xa9 || (op >= 0x15 && op <= 0x19)
+          || (op >= 0x36 && op <= 0x3a)) {
+        return 1; // bipush, newarray, ret, loads and stores
+      }
+      if (op == 0x11 || op == 0x84 || (op >= 0x99 && op <= 0xa8) || op == 0xc6 || op == 0xc7) {
+        return 2; // sipush, iinc, branches
+      }
+      if (op == 0xc8 || op == 0xc9) {
+        return 4; // goto_w, jsr_w
+      }
+      return 0;
+    }
+
+    private void stackMapTable(DataInputStream in) throws IOException {
+      for (int i = in.readUnsignedShort(); i > 0; --i) {
+        int type = in.readUnsignedByte();
+        out.writeByte(type);
+        if (type < 64) {
+          continue; // same frame
+        } else if (type < 128) {
+          verificationType(in); // same locals, one stack item
+        } else if (type == 247) {
+          copy(in, 2);
+          verificationType(in);
+        } else if (type >= 248 && type <= 251) {
+          copy(in, 2); // chop or same, with an offset
+        } else if (type >= 252 && type <= 254) {
+          copy(in, 2);
+          for (int j = type - 251; j > 0; --j) {
+            verificationType(in);
+          }
+        } else if (type == 255) {
+          copy(in, 2);
+          for (int list = 0; list < 2; ++list) { // locals, then stack
+            int count = in.readUnsignedShort();
+            out.writeShort(count);
+            for (int j = 0; j < count; ++j) {
+              verificationType(in);
+            }
+          }
+        } else {
+          throw new IOException("bad stack map frame type " + type);
+        }
+      }
+    }
+
+    private void verificationType(DataInputStream in) throws IOException {
+      int tag = in.readUnsignedByte();
+      out.writeByte(tag);
+      if (tag == 7) {
+        constant(in); // an object of a class
+      } else if (tag == 8) {
+        copy(in, 2); // uninitialized, by offset
+      }
+    }
+
+    private void annotations(DataInputStream in) throws IOException {
+      int count = in.readUnsignedShort();
+      out.writeShort(count);
+      for (int i = 0; i < count; ++i) {
+        annotation(in);
+      }
+    }
+
+    private void annotation(DataInputStream in) throws IOException {
+      constant(in); // type
+      int pairs = in.readUnsignedShort();
+      out.writeShort(pairs);
+      for (int i = 0; i < pairs; ++i) {
+        constant(in); // element name
+        elementValue(in);
+      }
+    }
+
+    private void elementValue(DataInputStream in) throws IOException {
+      int tag = in.readUnsignedByte();
+      out.writeByte(tag);
+      switch (tag) {
+        case 'e':
+          constant(in); // enum type
+          constant(in); // constant name
+          break;
+        case '@':
+          annotation(in);
+          break;
+        case '[':
+          int count = in.readUnsignedShort();
+          out.writeShort(count);
+          for (int i = 0; i < count; ++i) {
+            elementValue(in);
+          }
+          break;
+        default:
+          constant(in); // a constant or a class
+      }
+    }
+
+    private void typeAnnotation(DataInputStream in) throws IOException {
+      int target = in.readUnsignedByte();
+      out.writeByte(target);
+      if (target == 0x40 || target == 0x41) {
+        // local variables: a table of offset, length and slot
+        int count = in.readUnsignedShort();
+        out.writeShort(count);
+        copy(in, 6 * count);
+      } else if (target == 0x00 || target == 0x01 || target == 0x16) {
+        copy(in, 1);
+      } else if (target == 0x11 || target == 0x12 || target == 0x10 || target == 0x17
+          || (target >= 0x42 && target <= 0x46)) {
+        copy(in, 2);
+      } else if (target >= 0x47 && target <= 0x4b) {
+        copy(in, 3);
+      } else if (target < 0x13 || target > 0x15) {
+        throw new IOException("bad type annotation target " + target);
+      }
+      int path = in.readUnsignedByte();
+      out.writeByte(path);
+      copy(in, 2 * path);
+      annotation(in);
+    }
+  }
+}
@@ -0,0 +1,348 @@
+// GuardedCall.java: one strategy call, watched for leaked threads, CPU use and allocation
+// COS 445 SD1, Spring 2019
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Budgets are in thread CPU time rather than wall-clock time, so a strategy is
+// only cut off for the CPU it used itself and not for waiting on a busy machine.
+// Bytes allocated are capped the same way, so one strategy churning through
+// garbage cannot push every other trial into back-to-back collections. When a
+// trial as a whole goes over its budget, only the call using the most of it is
+// cut off, and only if that is more than an even share, so that cheap calls are
+// not blamed for a hog; the trial may then overrun its budget by up to that
+// much again. Both CPU time and allocation are measured on the thread that runs
+// the call: work a strategy hands to threads it starts itself escapes them, and
+// is only bounded by the wall-clock timeout (and reported as leaked threads).
+// A watchdog thread polls each trial's running calls every hundredth of the
+// trial's smallest CPU budget (within 5 to 100 ms), so a call overruns its
+// budget by about 1% at most and the default 10 s budget costs ten polls a
+// second rather than hundreds. A call that finishes between polls is still
+// checked against its limits when it returns.
+class GuardedCall<T> implements Callable<T> {
+  private static final int NEW = 0, RUNNING = 1, DONE = 2, LEAKED = 3;
+  // bounds on the time between polls of a group
+  private static final long MIN_POLL_MS = 5;
+  private static final long MAX_POLL_MS = 100;
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  static final boolean cpuTimeSupported = enableCpuTime();
+  static final boolean allocationSupported = enableAllocation();
+
+  private static boolean enableCpuTime() {
+    try {
+      if (!threads.isThreadCpuTimeSupported()) {
+        return false;
+      }
+      threads.setThreadCpuTimeEnabled(true);
+      return true;
+    } catch (UnsupportedOperationException | SecurityException e) {
+      return false;
+    }
+  }
+
+  private static boolean enableAllocation() {
+    try {
+      if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+        return false;
+      }
+      com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+      if (!sunThreads.isThreadAllocatedMemorySupported()) {
+        return false;
+      }
+      sunThreads.setThreadAllocatedMemoryEnabled(true);
+      return true;
+    } catch (UnsupportedOperationException | SecurityException e) {
+      return false;
+    }
+  }
+
+  private static long allocatedBytes(long threadId) {
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+  }
+
+  // The calls of one trial, which share the trial's CPU budget
+  static class Group {
+    final long callBudget;
+    final long trialBudget;
+    final long allocationCap;
+    final List<GuardedCall<?>> calls = new CopyOnWriteArrayList<>();
+    // how often the watchdog polls the group, and when it next does
+    private final long pollNanos;
+    private volatile long nextPoll;
+
+    // Budgets in milliseconds of CPU time and the cap in megabytes allocated per
+    // call; 0 means no limit
+    Group(long callBudgetMs, long trialBudgetMs, long allocationCapMb) {
+      callBudget = callBudgetMs * 1000000;
+      trialBudget = trialBudgetMs * 1000000;
+      allocationCap = allocationCapMb << 20;
+      long smallest = MAX_POLL_MS * 100;
+      if (callBudgetMs > 0) {
+        smallest = Math.min(smallest, callBudgetMs);
+      }
+      if (trialBudgetMs > 0) {
+        smallest = Math.min(smallest, trialBudgetMs);
+      }
+      pollNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(MIN_POLL_MS, smallest / 100));
+    }
+
+    <T> GuardedCall<T> add(String name, Callable<T> task, StrategyHealth health) {
+      GuardedCall<T> call = new GuardedCall<>(name, task, health, this);
+      calls.add(call);
+      return call;
+    }
+
+    boolean limited() {
+      return (cpuTimeSupported && (callBudget > 0 || trialBudget > 0))
+          || (allocationSupported && allocationCap > 0);
+    }
+
+    // Starts polling this group's calls against its budgets
+    void watch() {
+      if (limited()) {
+        nextPoll = System.nanoTime() + pollNanos;
+        watched.add(this);
+        startWatchdog();
+        // in case it is asleep until a group with a longer interval is due
+        LockSupport.unpark(watchdog);
+      }
+    }
+
+    void unwatch() {
+      watched.remove(this);
+    }
+
+    private void poll() {
+      GuardedCall<?>[] all = calls.toArray(new GuardedCall<?>[0]);
+      long[] used = new long[all.length];
+      long total = 0;
+      for (int i = 0; i < all.length; ++i) {
+        GuardedCall<?> call = all[i];
+        used[i] = call.cpuNanos();
+        if (callBudget > 0 && used[i] > callBudget && call.running()) {
+          call.cut("cpu budget (" + used[i] / 1000000 + " ms cpu)");
+        }
+        long allocated = call.allocatedBytes();
+        if (allocationCap > 0 && allocated > allocationCap && call.running()) {
+          call.cut("allocation cap (" + (allocated >> 20) + " MB)");
+        }
+        total += used[i];
+      }
+      if (trialBudget > 0 && total > trialBudget) {
+        // the running call with the most, if that is more than an even share
+        GuardedCall<?> heaviest = null;
+        long most = trialBudget / all.length;
+        for (int i = 0; i < all.length; ++i) {
+          if (used[i] > most && all[i].running()) {
+            heaviest = all[i];
+            most = used[i];
+          }
+        }
+        if (heaviest != null) {
+          heaviest.cut(
+              "trial cpu budget (" + most / 1000000 + " of " + total / 1000000 + " ms cpu)");
+        }
+      }
+    }
+  }
+
+  // Thrown by a task to report that it was stopped for going over a limit
+  // somewhere else, e.g. inside a worker process
+  static class CutOff extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    CutOff(String reason) {
+      super(reason);
+    }
+  }
+
+  private static final ThreadLocal<GuardedCall<?>> current = new ThreadLocal<>();
+
+  // Adds resources the running task used outside its own thread, e.g. in a worker process
+  static void addUsage(long cpuNanos, long allocatedBytes) {
+    GuardedCall<?> call = current.get();
+    if (call != null) {
+      call.remoteCpuNanos += cpuNanos;
+      call.remoteAllocated += allocatedBytes;
+    }
+  }
+
+  // calls abandoned while still inside their task
+  private static final AtomicInteger runaways = new AtomicInteger();
+
+  static int runaways() {
+    return runaways.get();
+  }
+
+  private static final Set<Group> watched = ConcurrentHashMap.newKeySet();
+  private static Thread watchdog = null;
+
+  private static synchronized void startWatchdog() {
+    if (watchdog == null) {
+      watchdog = Tournament.daemon(GuardedCall::watchLoop);
+      watchdog.setName("strategy watchdog");
+      watchdog.start();
+    }
+  }
+
+  // Polls each group when it is due, then sleeps until the next one is
+  private static void watchLoop() {
+    while (!Thread.interrupted()) {
+      long sleep = TimeUnit.MILLISECONDS.toNanos(MAX_POLL_MS);
+      for (Group group : watched) {
+        long now = System.nanoTime();
+        if (now - group.nextPoll >= 0) {
+          group.poll();
+          group.nextPoll = now + group.pollNanos;
+        }
+        sleep = Math.min(sleep, group.nextPoll - now);
+      }
+      LockSupport.parkNanos(Math.max(sleep, 0));
+    }
+  }
+
+  final String name;
+  private final Callable<T> task;
+  private final StrategyHealth health;
+  private final Group group;
+  private final AtomicInteger state = new AtomicInteger(NEW);
+  private volatile Thread thread = null;
+  private volatile long startCpu = 0;
+  private volatile long cpuNanos = 0;
+  private volatile long startAllocated = 0;
+  private volatile long allocated = 0;
+  private volatile long remoteCpuNanos = 0;
+  private volatile long remoteAllocated = 0;
+  private volatile String cutOff = null;
+  private volatile Future<T> future = null;
+
+  private GuardedCall(String name, Callable<T> task, StrategyHealth health, Group group) {
+    this.name = name;
+    this.task = task;
+    this.health = health;
+    this.group = group;
+  }
+
+  Future<T> submitTo(ExecutorService service) {
+    future = service.submit(this);
+    if (cutOff != null) {
+      future.cancel(true);
+    }
+    return future;
+  }
+
+  @Override
+  public T call() throws Exception {
+    if (!state.compareAndSet(NEW, RUNNING)) {
+      return null; // cancelled before it started
+    }
+    final long id = Thread.currentThread().getId();
+    if (cpuTimeSupported) {
+      startCpu = threads.getCurrentThreadCpuTime();
+    }
+    if (allocationSupported) {
+      startAllocated = allocatedBytes(id);
+    }
+    thread = Thread.currentThread();
+    current.set(this);
+    try {
+      return task.call();
+    } catch (CutOff e) {
+      markCut(e.getMessage());
+      return null;
+    } finally {
+      current.remove();
+      cpuNanos =
+          remoteCpuNanos + (cpuTimeSupported ? threads.getCurrentThreadCpuTime() - startCpu : 0);
+      allocated = remoteAllocated + (allocationSupported ? allocatedBytes(id) - startAllocated : 0);
+      if (group.callBudget > 0 && cpuNanos > group.callBudget) {
+        markCut("cpu budget (" + cpuNanos / 1000000 + " ms cpu)");
+      }
+      if (group.allocationCap > 0 && allocated > group.allocationCap) {
+        markCut("allocation cap (" + (allocated >> 20) + " MB)");
+      }
+      health.used(name, cpuNanos, allocated);
+      if (!state.compareAndSet(RUNNING, DONE)) {
+        runaways.decrementAndGet();
+        health.leakEnded(name);
+      }
+    }
+  }
+
+  boolean running() {
+    return state.get() == RUNNING;
+  }
+
+  // Still inside task, whether or not anyone is waiting for it
+  private boolean inTask() {
+    int s = state.get();
+    return s == RUNNING || s == LEAKED;
+  }
+
+  // CPU time used so far
+  long cpuNanos() {
+    Thread t = thread;
+    if (!cpuTimeSupported || t == null) {
+      return 0;
+    }
+    if (!inTask()) {
+      return cpuNanos;
+    }
+    long now = threads.getThreadCpuTime(t.getId());
+    // the thread may have finished and moved on since the check above
+    return inTask() && now >= startCpu ? now - startCpu + remoteCpuNanos : cpuNanos;
+  }
+
+  // Bytes allocated so far
+  long allocatedBytes() {
+    Thread t = thread;
+    if (!allocationSupported || t == null) {
+      return 0;
+    }
+    if (!inTask()) {
+      return allocated;
+    }
+    long now = allocatedBytes(t.getId());
+    return inTask() && now >= startAllocated ? now - startAllocated + remoteAllocated : allocated;
+  }
+
+  // Why the call was stopped early, or null if it was not
+  String cutOff() {
+    return cutOff;
+  }
+
+  private synchronized void markCut(String reason) {
+    if (cutOff == null) {
+      cutOff = reason;
+    }
+  }
+
+  private void cut(String reason) {
+    markCut(reason);
+    Future<T> f = future;
+    if (f != null) {
+      f.cancel(true);
+    }
+  }
+
+  // Called after the future was cancelled; counts the thread as leaked if it is still inside task
+  void abandon() {
+    if (state.compareAndSet(RUNNING, LEAKED)) {
+      runaways.incrementAndGet();
+      health.leaked(name);
+    } else {
+      state.compareAndSet(NEW, DONE);
+    }
+  }
+}
@@ -0,0 +1,235 @@
+// HarnessTest.java: checks the harness's promises that a mistake would quietly break
+// COS 445 SD1, Spring 2019
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+// Usage:
+//   java HarnessTest
+//     runs every check and exits with 1 if any failed; make check runs it
+// Every run mode promises the same results as a plain run with the same seed:
+// more threads, a deeper pipeline, worker processes, shards and checkpoints
+// only change how the trials are spread out. Each mode here runs Admissions on
+// the sample strategies, which draw their randomness from the harness, in a
+// process of its own, and its output must match the plain run's byte for byte.
+// A strategy's fingerprint must not change when only its comments do or when
+// it is compiled with -g, and must change when its code does. A trial cache over
+// its cap must evict the least recently used trials, and what it keeps must fit
+// in the cap on disk.
+public class HarnessTest {
+  private static int failures = 0;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Path tmp = Files.createTempDirectory("harness-test");
+    try {
+      runModes(tmp);
+      fingerprints(tmp);
+      trialCache(tmp.resolve("eviction"));
+    } finally {
+      delete(tmp);
+    }
+    if (failures > 0) {
+      System.err.println(failures + " check(s) failed");
+      System.exit(1);
+    }
+    System.err.println("all checks passed");
+  }
+
+  private static void check(boolean ok, String what) {
+    System.err.println((ok ? "ok    " : "FAIL  ") + what);
+    if (!ok) {
+      ++failures;
+    }
+  }
+
+  private static void runModes(Path tmp) throws IOException, InterruptedException {
+    // strategies whose every random draw comes from the trial's seed
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      names.addAll(List.of("holist", "synergist", "usnews", "mixed"));
+    }
+    Path namesFile = tmp.resolve("names.txt");
+    Files.write(namesFile, names);
+    String list = namesFile.toString();
+
+    String plain = run(List.of(), "Admissions", list);
+    check(!plain.isEmpty(), "plain run prints results");
+    check(plain.equals(run(List.of("-Dworkers=8"), "Admissions", list)), "workers=8");
+    check(
+        plain.equals(run(List.of("-Dworkers=4", "-DpipelineDepth=4"), "Admissions", list)),
+        "pipelineDepth=4");
+    check(
+        plain.equals(run(List.of("-DprocessWorkers=2"), "Admissions", list)), "processWorkers=2");
+
+    String checkpoint = "-Dcheckpoint=" + tmp.resolve("fresh.ckpt");
+    check(plain.equals(run(List.of(checkpoint), "Admissions", list)), "fresh checkpoint");
+    check(plain.equals(run(List.of(checkpoint), "Admissions", list)), "finished checkpoint");
+
+    Path shards = tmp.resolve("shards");
+    check(
+        plain.equals(run(List.of(), "Shards", "2", shards.toString(), "Admissions", list)),
+        "Shards 2, merged");
+    // a shard's checkpoint is a run stopped halfway, with every other trial done
+    Path partial = tmp.resolve("partial.ckpt");
+    Files.copy(shards.resolve("shard-0.ckpt"), partial);
+    check(
+        plain.equals(run(List.of("-Dcheckpoint=" + partial), "Admissions", list)),
+        "resumed from a shard's checkpoint");
+
+    String cache = "-DtrialCache=" + tmp.resolve("cache");
+    check(plain.equals(run(List.of(cache), "Admissions", list)), "trial cache, cold");
+    check(plain.equals(run(List.of(cache), "Admissions", list)), "trial cache, warm");
+  }
+
+  // a strategy with loops, fields, a lambda and string concatenation, but no
+  // constant locals, which -g keeps in variables (see Fingerprint)
+  private static final String PROBE =
+      String.join(
+          "\n",
+          "import java.util.ArrayList;",
+          "import java.util.List;",
+          "public class Student_probe {",
+          "  private final List<Integer> seen = new ArrayList<>();",
+          "  public String pick(int[] scores) {",
+          "    int best = 0;",
+          "    for (int i = 1; i < scores.length; ++i) {",
+          "      if (scores[i] > scores[best]) {",
+          "        best = i;",
+          "      }",
+          "    }",
+          "    seen.add(best);",
+          "    seen.removeIf(s -> s < 0);",
+          "    return \"picked \" + best + \" of \" + seen.size();",
+          "  }",
+          "}",
+          "");
+
+  private static void fingerprints(Path tmp) throws IOException {
+    String plain = fingerprint(tmp.resolve("plain"), PROBE);
+    check(plain.equals(fingerprint(tmp.resolve("debug"), PROBE, "-g")), "fingerprint with -g");
+    String commented =
+        PROBE.replace("    seen.add(best);", "    // every pick, in order\n\n    seen.add(best);");
+    check(plain.equals(fingerprint(tmp.resolve("commented"), commented)), "fingerprint, comments");
+    String changed = PROBE.replace("int best = 0;", "int best = scores.length - 1;");
+    check(!plain.equals(fingerprint(tmp.resolve("changed"), changed)), "fingerprint, code");
+  }
+
+  // Student_probe's fingerprint, compiled from source in dir with options
+  private static String fingerprint(Path dir, String source, String... options)
+      throws IOException {
+    Files.createDirectories(dir);
+    Path file = dir.resolve("Student_probe.java");
+    Files.writeString(file, source);
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    List<String> args = new ArrayList<>(Arrays.asList(options));
+    args.addAll(List.of("-d", dir.toString(), file.toString()));
+    if (javac.run(null, null, null, args.toArray(new String[0])) != 0) {
+      throw new RuntimeException(file + ": does not compile");
+    }
+    try (URLClassLoader loader =
+        new URLClassLoader(new URL[] {dir.toUri().toURL()}, HarnessTest.class.getClassLoader())) {
+      return Fingerprint.of(loader.loadClass("Student_probe"));
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException(dir + ": Student_probe", e);
+    }
+  }
+
+  private static void trialCache(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    long block = TrialCache.blockSize(dir);
+    // ten blocks: the rooms' one subdirectory and nine trials
+    TrialCache cache = new TrialCache(dir, 10 * block);
+    double[] scores = {1, 2, 3};
+    for (int i = 0; i < 6; ++i) {
+      cache.put("aa" + i, 1, false, scores);
+    }
+    // trial i last used 10 - i hours ago, then trial 0 used just now
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 6; ++i) {
+      for (Path file : paths(dir)) {
+        if (file.getFileName().toString().startsWith("aa" + i + "-")) {
+          Files.setLastModifiedTime(file, FileTime.fromMillis(now - (10 - i) * 3600_000L));
+        }
+      }
+    }
+    check(Arrays.equals(scores, cache.get("aa0", 1, false)), "trial cache hit");
+    // the eleventh block goes over the cap, and the two least recently used go
+    for (int i = 6; i < 10; ++i) {
+      cache.put("aa" + i, 1, false, scores);
+    }
+    check(cache.get("aa1", 1, false) == null, "trial cache evicts the least recently used");
+    check(cache.get("aa2", 1, false) == null, "trial cache evicts the next least recently used");
+    boolean kept = true;
+    for (int i : new int[] {0, 3, 4, 5, 6, 7, 8, 9}) {
+      kept &= cache.get("aa" + i, 1, false) != null;
+    }
+    check(kept, "trial cache keeps the rest, and the one just used");
+    long onDisk = 0;
+    for (Path path : paths(dir)) {
+      if (!path.equals(dir)) {
+        onDisk += Math.max(1, (Files.size(path) + block - 1) / block) * block;
+      }
+    }
+    check(onDisk <= 10 * block, "trial cache fits in its cap on disk");
+  }
+
+  // dir and everything under it, each directory before what it holds
+  private static List<Path> paths(Path dir) throws IOException {
+    List<Path> ret = new ArrayList<>();
+    try (Stream<Path> walk = Files.walk(dir)) {
+      walk.forEach(ret::add);
+    }
+    return ret;
+  }
+
+  // The stdout of a JVM like this one running mainArgs with -Dseed=42 and extra
+  private static String run(List<String> extra, String... mainArgs)
+      throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(
+        ProcessHandle.current()
+            .info()
+            .command()
+            .orElse(System.getProperty("java.home") + "/bin/java"));
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (arg.equals("-ea") || arg.startsWith("-Djava.util.Arrays.useLegacyMergeSort")) {
+        command.add(arg);
+      }
+    }
+    command.add("-Dseed=42");
+    command.addAll(extra);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.addAll(Arrays.asList(mainArgs));
+    Process process =
+        new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+    String ret = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    int status = process.waitFor();
+    if (status != 0) {
+      System.err.println(String.join(" ", command) + ": exited with " + status);
+      return "";
+    }
+    return ret;
+  }
+
+  private static void delete(Path dir) throws IOException {
+    List<Path> paths = paths(dir);
+    Collections.reverse(paths);
+    for (Path path : paths) {
+      Files.deleteIfExists(path);
+    }
+  }
+}
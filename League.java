@@ -0,0 +1,274 @@
+// League.java: many rooms of a fixed size drawn from a large pool of strategies
+// COS 445 SD1, Spring 2019
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// With hundreds of submissions, one room holding all of them is slow to play
+// and unlike the rooms the game is meant for. A league plays many rooms of a
+// chosen size instead and adds up each strategy's results over the rooms it
+// was in. Rooms are planned a round at a time. Every strategy plays once per
+// round, and each room is filled greedily with whoever has met its current
+// members least often so far, so exposure to opponents evens out as rounds go
+// on. When the pool does not divide into rooms, the last room of a round is
+// topped up with the strategies that have played least.
+//
+// A league can also race: after the planned rounds, further rounds hold only
+// the strategies whose place in the ranking is still in doubt (topped up with
+// others as needed), until every strategy is told apart from its neighbours in
+// the ranking with the confidence asked for. Trials then go where they change
+// the leaderboard rather than to strategies whose rank is already clear.
+class League {
+  final int poolSize;
+  final int roomSize;
+  // each room as indices into the pool
+  private final List<int[]> rooms = new ArrayList<>();
+  // and its id, from which its trials draw their seeds, so that a room kept
+  // from an earlier run of the league plays the same trials
+  private final List<Long> ids = new ArrayList<>();
+  private long nextId = 0;
+  private final int[] appearances;
+  // how many rooms each pair of strategies has shared
+  private final int[][] met;
+  // breaks ties while planning, so a plan follows from the seed
+  private final SplittableRandom random;
+
+  League(int poolSize, int roomSize, long seed) {
+    assert poolSize >= 1 && roomSize >= 1 : "Bad league of " + poolSize + " by " + roomSize;
+    this.poolSize = poolSize;
+    this.roomSize = roomSize;
+    this.appearances = new int[poolSize];
+    this.met = new int[poolSize][poolSize];
+    this.random = new SplittableRandom(seed);
+  }
+
+  List<int[]> rooms() {
+    return rooms;
+  }
+
+  long id(int room) {
+    return ids.get(room);
+  }
+
+  // Strategies that have played fewer than `rounds` rooms
+  BitSet playedFewerThan(int rounds) {
+    BitSet ret = new BitSet();
+    for (int i = 0; i < poolSize; ++i) {
+      if (appearances[i] < rounds) {
+        ret.set(i);
+      }
+    }
+    return ret;
+  }
+
+  int appearances(int strategy) {
+    return appearances[strategy];
+  }
+
+  // Plans `rounds` more rounds of the whole pool
+  void schedule(int rounds) {
+    BitSet all = new BitSet();
+    all.set(0, poolSize);
+    schedule(rounds, all);
+  }
+
+  // Plans `rounds` more rounds in which each strategy in `players` plays once
+  void schedule(int rounds, BitSet players) {
+    for (int round = 0; round < rounds; ++round) {
+      List<Integer> left = shuffled();
+      left.removeIf(i -> !players.get(i));
+      while (!left.isEmpty()) {
+        int[] room = new int[roomSize];
+        for (int slot = 0; slot < roomSize; ++slot) {
+          if (left.isEmpty()) {
+            room[slot] = topUp(room, slot);
+          } else {
+            room[slot] = left.remove(closest(left, room, slot));
+          }
+        }
+        add(nextId, room);
+      }
+    }
+  }
+
+  // Adds the room with this id, e.g. one kept from an earlier plan; members
+  // who have left the pool (given as -1) are replaced as topping up would
+  void keep(long id, int[] members) {
+    int[] room = new int[roomSize];
+    int filled = 0;
+    for (int i : members) {
+      if (i >= 0) {
+        room[filled++] = i;
+      }
+    }
+    for (; filled < roomSize; ++filled) {
+      room[filled] = topUp(room, filled);
+    }
+    add(id, room);
+  }
+
+  // The pool in a random order
+  private List<Integer> shuffled() {
+    List<Integer> ret = new ArrayList<>();
+    for (int i = 0; i < poolSize; ++i) {
+      ret.add(i);
+    }
+    for (int i = poolSize - 1; i > 0; --i) {
+      int j = random.nextInt(i + 1);
+      ret.set(i, ret.set(j, ret.get(i)));
+    }
+    return ret;
+  }
+
+  // Position in candidates of the one that has met the first `filled` members
+  // of room least often; the first such, as candidates are in random order
+  private int closest(List<Integer> candidates, int[] room, int filled) {
+    int ret = 0;
+    long best = Long.MAX_VALUE;
+    for (int c = 0; c < candidates.size(); ++c) {
+      long meetings = 0;
+      for (int slot = 0; slot < filled; ++slot) {
+        meetings += met[candidates.get(c)][room[slot]];
+      }
+      if (meetings < best) {
+        best = meetings;
+        ret = c;
+      }
+    }
+    return ret;
+  }
+
+  // Whoever has played least, and then met room least, of those not already in
+  // it; only if the pool is smaller than a room do strategies play themselves
+  private int topUp(int[] room, int filled) {
+    List<Integer> candidates = new ArrayList<>();
+    long fewest = Long.MAX_VALUE;
+    for (int i : shuffled()) {
+      boolean inRoom = false;
+      for (int slot = 0; slot < filled; ++slot) {
+        inRoom |= room[slot] == i;
+      }
+      long played = (inRoom ? (long) Integer.MAX_VALUE : 0) + appearances[i];
+      if (played < fewest) {
+        fewest = played;
+        candidates.clear();
+      }
+      if (played == fewest) {
+        candidates.add(i);
+      }
+    }
+    return candidates.get(closest(candidates, room, filled));
+  }
+
+  private void add(long id, int[] room) {
+    rooms.add(room);
+    ids.add(id);
+    nextId = Math.max(nextId, id + 1);
+    for (int i = 0; i < room.length; ++i) {
+      ++appearances[room[i]];
+      for (int j = 0; j < i; ++j) {
+        ++met[room[i]][room[j]];
+        ++met[room[j]][room[i]];
+      }
+    }
+  }
+
+  // Each strategy's results over every room it played in
+  static class Standings {
+    // mean score per trial played
+    final double[] mean;
+    final double[] stdError;
+    // mean of its score over the mean score of its room, so that a strategy is
+    // not flattered by having drawn easy rooms
+    final double[] fractionOfMean;
+    // trials played, counting each copy in a room
+    final long[] trials;
+
+    Standings(int poolSize) {
+      mean = new double[poolSize];
+      stdError = new double[poolSize];
+      fractionOfMean = new double[poolSize];
+      trials = new long[poolSize];
+    }
+  }
+
+  // Adds up results per strategy, given for each room the sums of each
+  // position's scores, then of their squares, then the number of trials
+  Standings standings(List<ScoreSums> roomSums) {
+    assert roomSums.size() == rooms.size() : "Expected results for " + rooms.size() + " rooms";
+    double[] sums = new double[poolSize];
+    double[] squares = new double[poolSize];
+    double[] fractions = new double[poolSize];
+    Standings ret = new Standings(poolSize);
+    for (int r = 0; r < rooms.size(); ++r) {
+      int[] room = rooms.get(r);
+      double[] totals = roomSums.get(r).totals();
+      long count = (long) totals[2 * room.length];
+      if (count == 0) {
+        continue;
+      }
+      double roomTotal = 0;
+      for (int slot = 0; slot < room.length; ++slot) {
+        roomTotal += totals[slot];
+      }
+      double roomMean = roomTotal / room.length;
+      for (int slot = 0; slot < room.length; ++slot) {
+        sums[room[slot]] += totals[slot];
+        squares[room[slot]] += totals[room.length + slot];
+        fractions[room[slot]] += roomMean == 0 ? 0 : totals[slot] / roomMean * count;
+        ret.trials[room[slot]] += count;
+      }
+    }
+    for (int i = 0; i < poolSize; ++i) {
+      long n = ret.trials[i];
+      ret.mean[i] = n == 0 ? Double.NaN : sums[i] / n;
+      ret.fractionOfMean[i] = n == 0 ? Double.NaN : fractions[i] / n;
+      double variance = n < 2 ? 0 : (squares[i] - n * ret.mean[i] * ret.mean[i]) / (n - 1);
+      ret.stdError[i] = n < 2 ? Double.POSITIVE_INFINITY : Math.sqrt(Math.max(0, variance) / n);
+    }
+    return ret;
+  }
+
+  // The strategies not yet told apart from a neighbour in the ranking by mean,
+  // when this is one of at most `looks` checks of a race. Neighbours are apart
+  // if their means differ by more than z standard errors of the difference,
+  // where z makes every call of every check right at once with at least the
+  // given confidence: by the Bonferroni bound, each check spends an equal share
+  // of the error allowed, split among its pairs. Without that split a race
+  // that looks again after every round would, sooner or later, call some pair
+  // on noise alone. They are also settled if the difference is as surely below
+  // tolerance, as copies of one strategy would otherwise never be told apart.
+  // Strategies yet to play are never settled.
+  BitSet unresolved(Standings standings, double confidence, double tolerance, int looks) {
+    assert confidence > 0 && confidence < 1 : "Bad confidence " + confidence;
+    assert looks >= 1 : "Bad number of checks " + looks;
+    List<Integer> ranking = new ArrayList<>();
+    for (int i = 0; i < poolSize; ++i) {
+      ranking.add(i);
+    }
+    ranking.sort(
+        (a, b) -> Double.compare(rank(standings.mean[b]), rank(standings.mean[a])));
+    double z =
+        RunningStats.normalQuantile(
+            1 - (1 - confidence) / (2.0 * Math.max(1, poolSize - 1) * looks));
+    BitSet ret = new BitSet();
+    for (int k = 0; k + 1 < poolSize; ++k) {
+      int a = ranking.get(k);
+      int b = ranking.get(k + 1);
+      double gap = standings.mean[a] - standings.mean[b];
+      double stdError = Math.hypot(standings.stdError[a], standings.stdError[b]);
+      if (!(gap > z * stdError || gap + z * stdError < tolerance)) {
+        ret.set(a);
+        ret.set(b);
+      }
+    }
+    return ret;
+  }
+
+  // Strategies that have not played rank last
+  private static double rank(double mean) {
+    return Double.isNaN(mean) ? Double.NEGATIVE_INFINITY : mean;
+  }
+}
@@ -0,0 +1,124 @@
+// LeagueResults.java: every room of a league with its strategies' fingerprints and sums
+// COS 445 SD1, Spring 2019
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// What a league played, kept between runs so that the next run only plays the
+// rooms whose strategies changed. The results only carry over to a run with
+// the same seed and setup (harness code, trials per room, config and so on),
+// described by a string; a run given no seed takes the one saved. The file is
+//   int magic, long seed, UTF setup, int rooms,
+//   then per room: long id, int strategies, that many pairs of UTF name and
+//   UTF fingerprint, and the sums as ScoreSums.write lays them out
+class LeagueResults {
+  private static final int MAGIC = 0x5344314c; // "SD1L"
+
+  static class Room {
+    final long id;
+    final List<String> names;
+    final List<String> fingerprints;
+    final ScoreSums sums;
+
+    Room(long id, List<String> names, List<String> fingerprints, ScoreSums sums) {
+      this.id = id;
+      this.names = names;
+      this.fingerprints = fingerprints;
+      this.sums = sums;
+    }
+  }
+
+  // The seed the rooms saved at path were played with, or null if there are none
+  static Long seed(Path path) {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    try (InputStream file = Files.newInputStream(path);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+      if (in.readInt() != MAGIC) {
+        throw new RuntimeException(path + ": not league results");
+      }
+      return in.readLong();
+    } catch (IOException e) {
+      throw new RuntimeException(path + ": read league results", e);
+    }
+  }
+
+  // The rooms saved at path, or none if there are none or they were played
+  // with another seed or setup
+  static List<Room> load(Path path, long seed, String setup) {
+    List<Room> ret = new ArrayList<>();
+    if (!Files.exists(path)) {
+      return ret;
+    }
+    try (InputStream file = Files.newInputStream(path);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+      if (in.readInt() != MAGIC) {
+        throw new RuntimeException(path + ": not league results");
+      }
+      long savedSeed = in.readLong();
+      if (savedSeed != seed) {
+        System.err.println(path + ": played with seed " + savedSeed + "; starting over");
+        return ret;
+      }
+      String saved = in.readUTF();
+      if (!saved.equals(setup)) {
+        System.err.println(path + ": played with " + saved + "; starting over");
+        return ret;
+      }
+      for (int r = in.readInt(); r > 0; --r) {
+        long id = in.readLong();
+        List<String> names = new ArrayList<>();
+        List<String> fingerprints = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; --i) {
+          names.add(in.readUTF());
+          fingerprints.add(in.readUTF());
+        }
+        ret.add(new Room(id, names, fingerprints, ScoreSums.read(in)));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(path + ": read league results", e);
+    }
+    return ret;
+  }
+
+  // Writes to a temporary file and moves it over the old results, as
+  // Checkpoint does
+  static void save(Path path, long seed, String setup, List<Room> rooms) {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (OutputStream file = Files.newOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+      out.writeInt(MAGIC);
+      out.writeLong(seed);
+      out.writeUTF(setup);
+      out.writeInt(rooms.size());
+      for (Room room : rooms) {
+        out.writeLong(room.id);
+        out.writeInt(room.names.size());
+        for (int i = 0; i < room.names.size(); ++i) {
+          out.writeUTF(room.names.get(i));
+          out.writeUTF(room.fingerprints.get(i));
+        }
+        room.sums.write(out);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(tmp + ": write league results", e);
+    }
+    try {
+      Files.move(
+          tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new RuntimeException(path + ": replace league results", e);
+    }
+  }
+}
@@ -0,0 +1,18 @@
+// Nondeterministic.java: marks a strategy whose moves are not a function of its inputs
+// COS 445 SD1, Spring 2019
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Put @Nondeterministic on a strategy class whose moves can differ between
+// calls with the same arguments, e.g. because it draws from an unseeded Random
+// or looks at the clock. Trials with such a strategy in the room are never
+// taken from or added to the trial cache (see TrialCache), since replaying
+// them would not give the same scores. Subclasses are nondeterministic too.
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Nondeterministic {}
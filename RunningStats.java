@@ -0,0 +1,118 @@
+// RunningStats.java: running mean, variance and confidence interval per strategy
+// COS 445 SD1, Spring 2019
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Welford's online algorithm over a stream of score vectors, one column per
+// strategy, in constant memory however many trials are added. Unlike ScoreSums
+// the results depend (in the last few bits) on the order trials arrive, so they
+// are for progress reports and stopping decisions, not for the final scores.
+public class RunningStats {
+  // Two-sided 95% normal quantile
+  static final double Z95 = 1.959963984540054;
+
+  // The standard normal quantile function, by Acklam's rational approximation
+  // (relative error below 1.2e-9), for confidence levels other than 95%
+  static double normalQuantile(double p) {
+    assert p > 0 && p < 1 : "Bad probability " + p;
+    final double[] a = {
+      -3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+      1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00
+    };
+    final double[] b = {
+      -5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+      6.680131188771972e+01, -1.328068155288572e+01
+    };
+    final double[] c = {
+      -7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+      -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00
+    };
+    final double[] d = {
+      7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00
+    };
+    if (p < 0.02425 || p > 1 - 0.02425) {
+      double q = Math.sqrt(-2 * Math.log(Math.min(p, 1 - p)));
+      double x =
+          (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+              / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+      return p < 0.5 ? x : -x;
+    }
+    double q = p - 0.5;
+    double r = q * q;
+    return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5])
+        * q
+        / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+  }
+
+  private final double[] mean;
+  private final double[] m2;
+  private long count = 0;
+
+  public RunningStats(int width) {
+    mean = new double[width];
+    m2 = new double[width];
+  }
+
+  public int width() {
+    return mean.length;
+  }
+
+  // Returns the number of vectors added so far, this one included
+  public synchronized long add(double[] scores) {
+    assert scores.length == mean.length : "Expected " + mean.length + " scores";
+    ++count;
+    for (int i = 0; i < mean.length; ++i) {
+      double delta = scores[i] - mean[i];
+      mean[i] += delta / count;
+      m2[i] += delta * (scores[i] - mean[i]);
+    }
+    return count;
+  }
+
+  public synchronized long count() {
+    return count;
+  }
+
+  public synchronized double mean(int i) {
+    return mean[i];
+  }
+
+  // Sample variance; 0 until there are two trials
+  public synchronized double variance(int i) {
+    return count < 2 ? 0 : m2[i] / (count - 1);
+  }
+
+  // Standard error of the mean; infinite until there are two trials
+  public synchronized double stdError(int i) {
+    return count < 2 ? Double.POSITIVE_INFINITY : Math.sqrt(variance(i) / count);
+  }
+
+  // Half the width of the 95% confidence interval for the mean
+  public synchronized double halfWidth95(int i) {
+    return Z95 * stdError(i);
+  }
+
+  // Columns ordered by mean, highest first
+  public synchronized List<Integer> ranking() {
+    List<Integer> ret = new ArrayList<>();
+    for (int i = 0; i < mean.length; ++i) {
+      ret.add(i);
+    }
+    ret.sort((a, b) -> Double.compare(mean[b], mean[a]));
+    return ret;
+  }
+
+  // Names ranked by mean, each with its 95% confidence interval
+  public synchronized void printLeaderboard(PrintStream out, List<String> names) {
+    assert names.size() == mean.length : "Expected " + mean.length + " names";
+    out.println("after " + count + " trials:");
+    int rank = 1;
+    for (int i : ranking()) {
+      out.println(
+          String.format(
+              "%3d. %-20s %.4f +- %.4f", rank++, names.get(i), mean[i], halfWidth95(i)));
+    }
+  }
+}
@@ -0,0 +1,91 @@
+// ScoreSums.java: per-strategy score totals for a batch of trials
+// COS 445 SD1, Spring 2019
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+// Totals are kept exactly, so adding the same trials in any order (or from any
+// number of worker threads) rounds to the same doubles at the end.
+public class ScoreSums {
+  private final BigDecimal[] sums;
+  private long count = 0;
+
+  public ScoreSums(int width) {
+    sums = new BigDecimal[width];
+    for (int i = 0; i < width; ++i) {
+      sums[i] = BigDecimal.ZERO;
+    }
+  }
+
+  public int width() {
+    return sums.length;
+  }
+
+  public synchronized void add(double[] scores) {
+    assert scores.length == sums.length : "Expected " + sums.length + " scores";
+    for (int i = 0; i < sums.length; ++i) {
+      if (scores[i] != 0) {
+        sums[i] = sums[i].add(new BigDecimal(scores[i]));
+      }
+    }
+    ++count;
+  }
+
+  public synchronized void addAll(ScoreSums other) {
+    assert other.sums.length == sums.length : "Mismatched score widths";
+    synchronized (other) {
+      for (int i = 0; i < sums.length; ++i) {
+        sums[i] = sums[i].add(other.sums[i]);
+      }
+      count += other.count;
+    }
+  }
+
+  // Number of score vectors added so far
+  public synchronized long count() {
+    return count;
+  }
+
+  // Columns from through to - 1, over the same trials
+  public synchronized ScoreSums slice(int from, int to) {
+    ScoreSums ret = new ScoreSums(to - from);
+    System.arraycopy(sums, from, ret.sums, 0, to - from);
+    ret.count = count;
+    return ret;
+  }
+
+  // Writes the exact sums, so that read gives back the same totals
+  synchronized void write(DataOutputStream out) throws IOException {
+    out.writeInt(sums.length);
+    out.writeLong(count);
+    for (BigDecimal sum : sums) {
+      byte[] unscaled = sum.unscaledValue().toByteArray();
+      out.writeInt(sum.scale());
+      out.writeInt(unscaled.length);
+      out.write(unscaled);
+    }
+  }
+
+  static ScoreSums read(DataInputStream in) throws IOException {
+    ScoreSums ret = new ScoreSums(in.readInt());
+    ret.count = in.readLong();
+    for (int i = 0; i < ret.sums.length; ++i) {
+      int scale = in.readInt();
+      byte[] unscaled = new byte[in.readInt()];
+      in.readFully(unscaled);
+      ret.sums[i] = new BigDecimal(new BigInteger(unscaled), scale);
+    }
+    return ret;
+  }
+
+  public synchronized double[] totals() {
+    double[] ret = new double[sums.length];
+    for (int i = 0; i < sums.length; ++i) {
+      ret[i] = sums[i].doubleValue();
+    }
+    return ret;
+  }
+}
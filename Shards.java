@@ -0,0 +1,120 @@
+// Shards.java: runs a tournament split across several JVMs and merges their sums
+// COS 445 SD1, Spring 2019
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Usage:
+//   java [options] Shards n dir MainClass args...
+//     runs MainClass in n processes, shard i with -Dshard=i/n and its partial
+//     sums in dir/shard-i.ckpt (its output in dir/shard-i.out), merges them into
+//     dir/merged.ckpt and runs MainClass once more from that checkpoint to print
+//     the results. Options such as -Dseed and -ea are passed on to every process;
+//     without -Dseed, one seed is drawn here and given to all of them.
+//     With -DshardHosts=host1,host2,... shard i runs on host i % hosts over ssh
+//     instead, in the same directory, which must be shared between the hosts.
+//   java Shards merge out in...
+//     only merges checkpoints, e.g. ones copied back from other machines
+// Every shard draws the same trial seeds as a single process would, and the
+// merge adds exact sums, so the results are identical to an unsharded run with
+// the same seed. A stopping rule needs every trial, so it cannot be sharded.
+public class Shards {
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length >= 2 && args[0].equals("merge")) {
+      List<Path> in = new ArrayList<>();
+      for (int i = 2; i < args.length; ++i) {
+        in.add(Paths.get(args[i]));
+      }
+      Checkpoint.merge(Paths.get(args[1]), in);
+      return;
+    }
+    assert args.length >= 3 : "Expected shard count, directory and main class";
+    final int n = Integer.parseInt(args[0]);
+    final Path dir = Paths.get(args[1]).toAbsolutePath();
+    final List<String> mainArgs = Arrays.asList(args).subList(2, args.length);
+    Files.createDirectories(dir);
+    String hostList = System.getProperty("shardHosts", "").trim();
+    List<String> hosts = hostList.isEmpty() ? List.of() : Arrays.asList(hostList.split(","));
+    // shards that each drew their own seed could not be merged
+    List<String> seed = new ArrayList<>();
+    if (System.getProperty("seed") == null) {
+      seed.add("-Dseed=" + new SplittableRandom().nextLong());
+      System.err.println("shards: " + seed.get(0));
+    }
+
+    List<Process> shards = new ArrayList<>();
+    List<Path> checkpoints = new ArrayList<>();
+    for (int i = 0; i < n; ++i) {
+      Path checkpoint = dir.resolve("shard-" + i + ".ckpt");
+      Files.deleteIfExists(checkpoint);
+      checkpoints.add(checkpoint);
+      List<String> extra = new ArrayList<>(seed);
+      extra.add("-Dshard=" + i + "/" + n);
+      extra.add("-Dcheckpoint=" + checkpoint);
+      List<String> command = java(extra, mainArgs);
+      if (!hosts.isEmpty()) {
+        command = ssh(hosts.get(i % hosts.size()), command);
+      }
+      shards.add(
+          new ProcessBuilder(command)
+              .redirectOutput(dir.resolve("shard-" + i + ".out").toFile())
+              .redirectError(ProcessBuilder.Redirect.INHERIT)
+              .start());
+    }
+    for (int i = 0; i < n; ++i) {
+      int status = shards.get(i).waitFor();
+      if (status != 0) {
+        throw new RuntimeException("shard " + i + ": exited with " + status);
+      }
+    }
+
+    Path merged = dir.resolve("merged.ckpt");
+    Files.deleteIfExists(merged);
+    Checkpoint.merge(merged, checkpoints);
+    Process results =
+        new ProcessBuilder(java(List.of("-Dcheckpoint=" + merged), mainArgs)).inheritIO().start();
+    System.exit(results.waitFor());
+  }
+
+  // This JVM's java, options and class path running mainArgs with extra options
+  private static List<String> java(List<String> extra, List<String> mainArgs) {
+    List<String> ret = new ArrayList<>();
+    ret.add(
+        ProcessHandle.current()
+            .info()
+            .command()
+            .orElse(System.getProperty("java.home") + "/bin/java"));
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (!arg.startsWith("-Dshard") && !arg.startsWith("-Dcheckpoint=")) {
+        ret.add(arg);
+      }
+    }
+    ret.addAll(extra);
+    ret.add("-cp");
+    ret.add(System.getProperty("java.class.path"));
+    ret.addAll(mainArgs);
+    return ret;
+  }
+
+  // Runs command on host from the same directory, quoting each word for its shell
+  private static List<String> ssh(String host, List<String> command) {
+    StringBuilder remote = new StringBuilder("cd " + quote(new File("").getAbsolutePath()));
+    remote.append(" &&");
+    for (String word : command) {
+      remote.append(' ').append(quote(word));
+    }
+    return List.of("ssh", host, remote.toString());
+  }
+
+  private static String quote(String word) {
+    return "'" + word.replace("'", "'\\''") + "'";
+  }
+}
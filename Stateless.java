@@ -0,0 +1,16 @@
+// Stateless.java: marks a strategy whose instances can be reused across trials
+// COS 445 SD1, Spring 2019
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Put @Stateless on a strategy class that keeps no state between calls (no
+// fields written after construction, no mutable statics). The tournament then
+// builds one instance per worker thread and reuses it for every trial that
+// thread runs, possibly for several calls at once, instead of constructing a
+// fresh one for every seat in every trial.
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Stateless {}
@@ -21,6 +21,8 @@ public class StrategiesTest {
         assert N >= 10 : "Must have at least 10 strategies in students.txt!";
 
         final Admissions withStrategies = new Admissions(strategyNames);
+        // harness options such as -Dworkers and -Dseed; see Tournament.configureFromProperties
+        withStrategies.configureFromProperties();
 
         double[] results = new double[N];
         for (double S : ratios) {
@@ -57,5 +59,13 @@ public class StrategiesTest {
         }
         System.out.println(prevName + "," + Double.toString(cumScore / stratCount) + ","
                 + Double.toString(cumScore / (avgScore * stratCount)));
+        if (!withStrategies.getHealth().allHealthy()) {
+            System.out.println();
+            withStrategies.getHealth().printReport(System.out);
+        }
+        withStrategies.getHealth().printUsage(System.err);
+        if (withStrategies.getTrialCache() != null) {
+            System.err.println(withStrategies.getTrialCache());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,355 @@
+// StrategyCompiler.java: compiles Student_*.java in-process, caching bytecode by source hash
+// COS 445 SD1, Spring 2019
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+// Each strategy's bytecode lives in <cache>/<key>/, where the key hashes its
+// source together with the sources of the other strategies its code names
+// (several call Student_liamdj), so editing one strategy recompiles it and the
+// strategies built on it and nothing else. Names in comments and string
+// literals, like the many "from Student_holist" notes, do not count. Everything
+// else comes from the cache, across runs too. Whenever the set of keys changes,
+// strategies are loaded by a fresh class loader, so a long-lived JVM (see
+// TournamentServer) picks up edits without restarting; otherwise the loader,
+// and the JIT's work on its classes, is reused. The cache is -DstrategyCache,
+// by default sd1-cache in the temporary directory: not under dir, which is
+// usually on the class path, where every compile would look to TournamentServer
+// like a rebuild. Keys depend only on sources, so one cache can serve any
+// number of directories. Like TrialCache, it is held to a cap,
+// -DstrategyCacheMb (64 by default): once its builds take up more, those used
+// least recently are deleted, down to 90% of it, but never the ones this JVM
+// has loaded last.
+class StrategyCompiler {
+  private static final Pattern NAME = Pattern.compile("\\bStudent_[A-Za-z0-9_]+\\b");
+  private static final Map<Path, StrategyCompiler> compilers = new HashMap<>();
+
+  private final Path dir;
+  private final Path cache;
+  private final long capBytes = Long.getLong("strategyCacheMb", 64) * 1000000;
+  private Map<String, String> loadedKeys = null;
+  private ClassLoader loader = null;
+
+  private StrategyCompiler(Path dir) {
+    this.dir = dir;
+    this.cache =
+        Paths.get(
+            System.getProperty(
+                "strategyCache",
+                Paths.get(System.getProperty("java.io.tmpdir"), "sd1-cache").toString()));
+  }
+
+  // A loader with the current build of every Student_*.java in dir
+  static synchronized ClassLoader loader(Path dir) {
+    return compilers
+        .computeIfAbsent(dir.toAbsolutePath().normalize(), StrategyCompiler::new)
+        .update();
+  }
+
+  private ClassLoader update() {
+    try {
+      Map<String, String> sources = new TreeMap<>();
+      try (Stream<Path> files = Files.list(dir)) {
+        for (Path file : files.collect(Collectors.toList())) {
+          String name = file.getFileName().toString();
+          if (name.startsWith("Student_") && name.endsWith(".java")) {
+            sources.put(name.substring(0, name.length() - 5), Files.readString(file));
+          }
+        }
+      }
+      Map<String, String> keys = new TreeMap<>();
+      for (String name : sources.keySet()) {
+        keys.put(name, key(name, sources));
+      }
+      if (keys.equals(loadedKeys)) {
+        return loader;
+      }
+      List<String> stale = new ArrayList<>();
+      for (Map.Entry<String, String> e : keys.entrySet()) {
+        if (!Files.isDirectory(cache.resolve(e.getValue()))) {
+          stale.add(e.getKey());
+        }
+      }
+      if (!stale.isEmpty()) {
+        compile(stale, keys);
+      }
+      evict(keys.values());
+      Map<String, Path> classDirs = new HashMap<>();
+      for (Map.Entry<String, String> e : keys.entrySet()) {
+        classDirs.put(e.getKey(), cache.resolve(e.getValue()));
+      }
+      loader = new Loader(classDirs, Tournament.class.getClassLoader());
+      loadedKeys = keys;
+      return loader;
+    } catch (IOException e) {
+      throw new RuntimeException(dir + ": strategies", e);
+    }
+  }
+
+  // Hash of name's source and, in name order, the sources of every strategy its
+  // code names, directly or through another
+  private static String key(String name, Map<String, String> sources) {
+    TreeSet<String> closure = new TreeSet<>();
+    List<String> todo = new ArrayList<>(List.of(name));
+    while (!todo.isEmpty()) {
+      String next = todo.remove(todo.size() - 1);
+      if (sources.containsKey(next) && closure.add(next)) {
+        Matcher m = NAME.matcher(code(sources.get(next)));
+        while (m.find()) {
+          todo.add(m.group());
+        }
+      }
+    }
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      sha.update(name.getBytes(StandardCharsets.UTF_8));
+      for (String dep : closure) {
+        sha.update((byte) 0);
+        sha.update(dep.getBytes(StandardCharsets.UTF_8));
+        sha.update((byte) 0);
+        sha.update(sources.get(dep).getBytes(StandardCharsets.UTF_8));
+      }
+      StringBuilder ret = new StringBuilder();
+      for (byte b : sha.digest()) {
+        ret.append(String.format("%02x", b));
+      }
+      return ret.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-256", e);
+    }
+  }
+
+  // source with its comments and string, text block and character literals
+  // each replaced by a space
+  private static String code(String source) {
+    StringBuilder ret = new StringBuilder(source.length());
+    int i = 0;
+    while (i < source.length()) {
+      char c = source.charAt(i);
+      if (source.startsWith("//", i)) {
+        int end = source.indexOf('\n', i);
+        i = end < 0 ? source.length() : end;
+      } else if (source.startsWith("/*", i)) {
+        int end = source.indexOf("*/", i + 2);
+        i = end < 0 ? source.length() : end + 2;
+      } else if (c == '"' || c == '\'') {
+        String quote = source.startsWith("\"\"\"", i) ? "\"\"\"" : String.valueOf(c);
+        int end = i + quote.length();
+        while (end < source.length() && !source.startsWith(quote, end)) {
+          // a backslash escapes whatever follows it
+          end += source.charAt(end) == '\\' ? 2 : 1;
+        }
+        i = Math.min(source.length(), end + quote.length());
+      } else {
+        ret.append(c);
+        ++i;
+        continue;
+      }
+      ret.append(' ');
+    }
+    return ret.toString();
+  }
+
+  // Compiles the stale strategies in one javac run, reading the others from
+  // source so nothing is compiled against an outdated .class file, and files
+  // each one's classes under its key
+  private void compile(List<String> stale, Map<String, String> keys) throws IOException {
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if (javac == null) {
+      throw new RuntimeException("in-process compilation needs a JDK, not a JRE");
+    }
+    Path out = Files.createTempDirectory("sd1-javac");
+    StringWriter diagnostics = new StringWriter();
+    try (StandardJavaFileManager files = javac.getStandardFileManager(null, null, null)) {
+      List<Path> paths = new ArrayList<>();
+      for (String name : stale) {
+        paths.add(dir.resolve(name + ".java"));
+      }
+      Iterable<? extends JavaFileObject> units = files.getJavaFileObjectsFromPaths(paths);
+      List<String> options =
+          List.of(
+              "-Xlint",
+              "-implicit:none",
+              "-Xprefer:source",
+              "-sourcepath",
+              dir.toString(),
+              "-classpath",
+              System.getProperty("java.class.path"),
+              "-d",
+              out.toString());
+      if (!javac.getTask(diagnostics, files, null, options, null, units).call()) {
+        throw new RuntimeException("strategies failed to compile:\n" + diagnostics);
+      }
+    }
+    System.err.print(diagnostics);
+    System.err.println("compiled " + String.join(", ", stale));
+    for (String name : stale) {
+      Path target = cache.resolve(keys.get(name));
+      Path tmp = Files.createTempDirectory(Files.createDirectories(cache), "building");
+      try (Stream<Path> classes = Files.list(out)) {
+        for (Path file : classes.collect(Collectors.toList())) {
+          String className = file.getFileName().toString();
+          if (className.equals(name + ".class") || className.startsWith(name + "$")) {
+            Files.copy(file, tmp.resolve(className));
+          }
+        }
+      }
+      // another JVM may have built the same key meanwhile; either copy will do
+      try {
+        Files.move(tmp, target);
+      } catch (IOException e) {
+        deleteTree(tmp);
+      }
+    }
+    deleteTree(out);
+  }
+
+  // Marks the builds in use as used just now, then deletes the least recently
+  // used others while the cache is over its cap
+  private void evict(Collection<String> inUse) throws IOException {
+    if (!Files.isDirectory(cache)) {
+      return;
+    }
+    FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+    for (String key : inUse) {
+      Files.setLastModifiedTime(cache.resolve(key), now);
+    }
+    long block = TrialCache.blockSize(cache);
+    List<Path> builds = new ArrayList<>();
+    Map<Path, Long> sizes = new HashMap<>();
+    Map<Path, FileTime> used = new HashMap<>();
+    long total = 0;
+    try (Stream<Path> entries = Files.list(cache)) {
+      for (Path build : entries.collect(Collectors.toList())) {
+        long size = block;
+        try (Stream<Path> files = Files.list(build)) {
+          for (Path file : files.collect(Collectors.toList())) {
+            size += Math.max(1, (Files.size(file) + block - 1) / block) * block;
+          }
+          used.put(build, Files.getLastModifiedTime(build));
+        } catch (IOException e) {
+          continue; // being built or deleted by another JVM
+        }
+        builds.add(build);
+        sizes.put(build, size);
+        total += size;
+      }
+    }
+    if (total <= capBytes) {
+      return;
+    }
+    builds.sort((a, b) -> used.get(a).compareTo(used.get(b)));
+    for (Path build : builds) {
+      if (total <= capBytes * 9 / 10) {
+        break;
+      }
+      if (build.getFileName().toString().startsWith("building")
+          || inUse.contains(build.getFileName().toString())) {
+        continue;
+      }
+      try {
+        deleteTree(build);
+      } catch (IOException e) {
+        // deleted by another JVM meanwhile
+      }
+      total -= sizes.get(build);
+    }
+  }
+
+  private static void deleteTree(Path root) throws IOException {
+    try (Stream<Path> files = Files.walk(root)) {
+      for (Path file : files.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  // Loads compiled strategies (and their nested classes) from their cache
+  // directories before asking its parent, which may have outdated copies
+  private static class Loader extends ClassLoader {
+    private final Map<String, Path> classDirs;
+
+    Loader(Map<String, Path> classDirs, ClassLoader parent) {
+      super("strategies", parent);
+      this.classDirs = classDirs;
+      setDefaultAssertionStatus(Tournament.class.desiredAssertionStatus());
+    }
+
+    private Path classDir(String name) {
+      int nested = name.indexOf('$');
+      return classDirs.get(nested < 0 ? name : name.substring(0, nested));
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      Path classDir = classDir(name);
+      if (classDir == null) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> ret = findLoadedClass(name);
+        if (ret == null) {
+          ret = findClass(name);
+        }
+        if (resolve) {
+          resolveClass(ret);
+        }
+        return ret;
+      }
+    }
+
+    // Class files too, for Fingerprint
+    @Override
+    public URL getResource(String name) {
+      if (name.endsWith(".class")) {
+        Path classDir = classDir(name.substring(0, name.length() - 6));
+        if (classDir != null) {
+          try {
+            return classDir.resolve(name).toUri().toURL();
+          } catch (MalformedURLException e) {
+            throw new RuntimeException(name, e);
+          }
+        }
+      }
+      return super.getResource(name);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      Path classDir = classDir(name);
+      if (classDir == null) {
+        throw new ClassNotFoundException(name);
+      }
+      try {
+        byte[] bytes = Files.readAllBytes(classDir.resolve(name + ".class"));
+        return defineClass(name, bytes, 0, bytes.length);
+      } catch (IOException e) {
+        throw new ClassNotFoundException(name, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,221 @@
+// StrategyHealth.java: per-strategy failure counts and quarantine
+// COS 445 SD1, Spring 2019
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts each strategy's timeouts, budget cut-offs and exceptions across every
+// trial of a tournament. Quarantine is off unless asked for: once a strategy
+// has failed quarantineAfter times in a row, with no call succeeding in between,
+// it is quarantined, and the tournament stops calling it and uses its fallback
+// applications instead. A strategy that only fails now and then keeps playing.
+// Threads still running a strategy after their call was cancelled are counted
+// as leaked until they finally exit.
+public class StrategyHealth {
+  static class Record {
+    final AtomicInteger calls = new AtomicInteger();
+    final AtomicInteger timeouts = new AtomicInteger();
+    final AtomicInteger exceptions = new AtomicInteger();
+    final AtomicInteger cutoffs = new AtomicInteger();
+    final AtomicInteger skipped = new AtomicInteger();
+    final AtomicInteger leaked = new AtomicInteger();
+    final AtomicInteger stillRunning = new AtomicInteger();
+    final LongAdder cpuNanos = new LongAdder();
+    final LongAdder allocatedBytes = new LongAdder();
+    final AtomicInteger measured = new AtomicInteger();
+    // failures since the last call that succeeded
+    final AtomicInteger inARow = new AtomicInteger();
+    volatile boolean quarantined = false;
+
+    int failures() {
+      return timeouts.get() + exceptions.get() + cutoffs.get();
+    }
+  }
+
+  private volatile int quarantineAfter = Integer.MAX_VALUE;
+  private final Map<String, Record> records = new ConcurrentHashMap<>();
+
+  // Number of timeouts, cut-offs and exceptions in a row after which a strategy
+  // is no longer called
+  public void setQuarantineAfter(int failures) {
+    assert failures >= 1 : "Need at least one failure before quarantine, got " + failures;
+    quarantineAfter = failures;
+  }
+
+  private Record get(String name) {
+    return records.computeIfAbsent(name, n -> new Record());
+  }
+
+  // True (and the skip is counted) if calls to this strategy should be short-circuited
+  boolean skip(String name) {
+    Record r = get(name);
+    if (!r.quarantined) {
+      return false;
+    }
+    r.skipped.incrementAndGet();
+    return true;
+  }
+
+  void succeeded(String name) {
+    Record r = get(name);
+    r.calls.incrementAndGet();
+    r.inARow.set(0);
+  }
+
+  void timedOut(String name) {
+    Record r = get(name);
+    r.calls.incrementAndGet();
+    r.timeouts.incrementAndGet();
+    checkQuarantine(name, r);
+  }
+
+  // Stopped for going over a resource budget
+  void cutOff(String name) {
+    Record r = get(name);
+    r.calls.incrementAndGet();
+    r.cutoffs.incrementAndGet();
+    checkQuarantine(name, r);
+  }
+
+  void failed(String name) {
+    Record r = get(name);
+    r.calls.incrementAndGet();
+    r.exceptions.incrementAndGet();
+    checkQuarantine(name, r);
+  }
+
+  private void checkQuarantine(String name, Record r) {
+    int inARow = r.inARow.incrementAndGet();
+    if (inARow >= quarantineAfter) {
+      synchronized (r) {
+        if (!r.quarantined) {
+          r.quarantined = true;
+          System.err.println(name + ": quarantined after " + inARow + " failures in a row");
+        }
+      }
+    }
+  }
+
+  // Resources one call used, whether or not it succeeded
+  void used(String name, long cpuNanos, long allocatedBytes) {
+    Record r = get(name);
+    r.cpuNanos.add(cpuNanos);
+    r.allocatedBytes.add(allocatedBytes);
+    r.measured.incrementAndGet();
+  }
+
+  // A cancelled call whose thread has not stopped
+  void leaked(String name) {
+    Record r = get(name);
+    r.leaked.incrementAndGet();
+    r.stillRunning.incrementAndGet();
+  }
+
+  // A leaked thread finally returned
+  void leakEnded(String name) {
+    get(name).stillRunning.decrementAndGet();
+  }
+
+  // Quarantines a strategy straight away, e.g. one that was quarantined before a
+  // run was checkpointed
+  void quarantine(String name) {
+    get(name).quarantined = true;
+  }
+
+  public List<String> quarantined() {
+    List<String> ret = new ArrayList<>();
+    for (Map.Entry<String, Record> e : new TreeMap<>(records).entrySet()) {
+      if (e.getValue().quarantined) {
+        ret.add(e.getKey());
+      }
+    }
+    return ret;
+  }
+
+  // Threads that were cancelled and are still running strategy code
+  public int leakedThreads() {
+    int ret = 0;
+    for (Record r : records.values()) {
+      ret += r.stillRunning.get();
+    }
+    return ret;
+  }
+
+  public boolean allHealthy() {
+    for (Record r : records.values()) {
+      if (r.failures() > 0 || r.leaked.get() > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Mean CPU milliseconds per measured call of each strategy
+  Map<String, Double> cpuMsPerCall() {
+    Map<String, Double> ret = new TreeMap<>();
+    for (Map.Entry<String, Record> e : records.entrySet()) {
+      int calls = e.getValue().measured.get();
+      if (calls > 0) {
+        ret.put(e.getKey(), e.getValue().cpuNanos.sum() / 1e6 / calls);
+      }
+    }
+    return ret;
+  }
+
+  // One CSV row per strategy that failed at least once
+  public void printReport(PrintStream out) {
+    out.println(
+        "netID,calls,timeouts,budget cutoffs,exceptions,quarantined,skipped calls,"
+            + "leaked threads,still running");
+    for (Map.Entry<String, Record> e : new TreeMap<>(records).entrySet()) {
+      Record r = e.getValue();
+      if (r.failures() == 0 && r.leaked.get() == 0) {
+        continue;
+      }
+      out.println(
+          String.join(
+              ",",
+              e.getKey(),
+              r.calls.toString(),
+              r.timeouts.toString(),
+              r.cutoffs.toString(),
+              r.exceptions.toString(),
+              Boolean.toString(r.quarantined),
+              r.skipped.toString(),
+              r.leaked.toString(),
+              r.stillRunning.toString()));
+    }
+  }
+
+  // CPU time and allocation of every strategy, heaviest allocators first
+  public void printUsage(PrintStream out) {
+    out.println("netID,calls,cpu ms per call,MB allocated per call,MB allocated per cpu second");
+    List<Map.Entry<String, Record>> entries = new ArrayList<>(records.entrySet());
+    entries.sort(
+        (a, b) ->
+            Long.compare(b.getValue().allocatedBytes.sum(), a.getValue().allocatedBytes.sum()));
+    for (Map.Entry<String, Record> e : entries) {
+      Record r = e.getValue();
+      int calls = r.measured.get();
+      if (calls == 0) {
+        continue;
+      }
+      double cpuMs = r.cpuNanos.sum() / 1e6;
+      double mb = r.allocatedBytes.sum() / (double) (1 << 20);
+      out.println(
+          String.join(
+              ",",
+              e.getKey(),
+              Integer.toString(calls),
+              String.format("%.2f", cpuMs / calls),
+              String.format("%.2f", mb / calls),
+              cpuMs > 0 ? String.format("%.1f", mb / (cpuMs / 1000)) : ""));
+    }
+  }
+}
@@ -0,0 +1,181 @@
+// StrategyWorker.java: runs Student strategies for the tournament in a separate JVM
+// COS 445 SD1, Spring 2019
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// The payloads WorkerPool carries for Admissions. A request holds one
+// getApplications call and the limits to hold it to:
+//   UTF class name, long cpu budget ms, long allocation cap MB, int timeout ms,
+//   int N, double S, T, W, aptitude, N doubles schools, N doubles synergies
+// and a reply holds the outcome and what the call used:
+//   byte status, long cpu ns, long bytes allocated, then
+//   int count and count ints (OK) or a UTF message (FAILED, CUT_OFF)
+public class StrategyWorker {
+  private static final byte OK = 0, FAILED = 1, CUT_OFF = 2;
+
+  // Harness side: runs one call in the worker serving className
+  static int[] getApplications(
+      WorkerPool pool,
+      String className,
+      long cpuBudgetMs,
+      long allocationCapMb,
+      int timeoutMs,
+      int N,
+      double S,
+      double T,
+      double W,
+      double aptitude,
+      double[] schools,
+      double[] synergies)
+      throws InterruptedException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 16 * N);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(className);
+      out.writeLong(cpuBudgetMs);
+      out.writeLong(allocationCapMb);
+      out.writeInt(timeoutMs);
+      out.writeInt(N);
+      out.writeDouble(S);
+      out.writeDouble(T);
+      out.writeDouble(W);
+      out.writeDouble(aptitude);
+      for (int i = 0; i < N; ++i) {
+        out.writeDouble(schools[i]);
+      }
+      for (int i = 0; i < N; ++i) {
+        out.writeDouble(synergies[i]);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(className + ": encode", e);
+    }
+    byte[] reply = pool.call(className, bytes.toByteArray());
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(reply))) {
+      byte status = in.readByte();
+      GuardedCall.addUsage(in.readLong(), in.readLong());
+      if (status == OK) {
+        int[] ret = new int[in.readInt()];
+        for (int i = 0; i < ret.length; ++i) {
+          ret[i] = in.readInt();
+        }
+        return ret;
+      } else if (status == CUT_OFF) {
+        throw new GuardedCall.CutOff(in.readUTF());
+      } else {
+        throw new RuntimeException(className + ": " + in.readUTF());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(className + ": decode", e);
+    }
+  }
+
+  // Leaked threads in this worker; any at all and it asks to be replaced
+  private static final StrategyHealth health = new StrategyHealth();
+  // the same build of the strategies as the harness that started this worker
+  private static final ClassLoader strategies = Tournament.strategyLoader();
+
+  private static List<Double> readDoubles(DataInputStream in, int n) throws IOException {
+    List<Double> ret = new ArrayList<>(n);
+    for (int i = 0; i < n; ++i) {
+      ret.add(in.readDouble());
+    }
+    return Collections.unmodifiableList(ret);
+  }
+
+  // Worker side: runs the requested call under the same limits the harness uses
+  private static byte[] handle(byte[] request) {
+    String className = "?";
+    GuardedCall<int[]> call = null;
+    byte status;
+    String message = null;
+    int[] ret = null;
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(request))) {
+      className = in.readUTF();
+      final long cpuBudgetMs = in.readLong();
+      final long allocationCapMb = in.readLong();
+      final int timeoutMs = in.readInt();
+      final int N = in.readInt();
+      final double S = in.readDouble();
+      final double T = in.readDouble();
+      final double W = in.readDouble();
+      final double aptitude = in.readDouble();
+      final List<Double> schools = readDoubles(in, N);
+      final List<Double> synergies = readDoubles(in, N);
+      final Class<? extends Student> clazz =
+          Class.forName(className, true, strategies).asSubclass(Student.class);
+
+      GuardedCall.Group group = new GuardedCall.Group(cpuBudgetMs, 0, allocationCapMb);
+      call =
+          group.add(
+              className,
+              () ->
+                  Tournament.newStrategy(clazz)
+                      .getApplications(N, S, T, W, aptitude, schools, synergies),
+              health);
+      Future<int[]> future = call.submitTo(Tournament.service);
+      group.watch();
+      try {
+        ret = future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        status = call.cutOff() == null ? OK : CUT_OFF;
+        message = call.cutOff();
+      } catch (CancellationException e) {
+        call.abandon();
+        status = CUT_OFF;
+        message = call.cutOff();
+      } catch (TimeoutException e) {
+        future.cancel(true);
+        call.abandon();
+        status = CUT_OFF;
+        message = "time out in worker";
+      } catch (ExecutionException e) {
+        status = FAILED;
+        message = String.valueOf(e.getCause());
+      } finally {
+        group.unwatch();
+      }
+    } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+      status = FAILED;
+      message = e.toString();
+    } catch (InterruptedException e) {
+      status = FAILED;
+      message = "interrupted in worker";
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      if (status == OK && ret == null) {
+        status = FAILED;
+        message = "returned null";
+      }
+      out.writeByte(status);
+      out.writeLong(call == null ? 0 : call.cpuNanos());
+      out.writeLong(call == null ? 0 : call.allocatedBytes());
+      if (status == OK) {
+        out.writeInt(ret.length);
+        for (int r : ret) {
+          out.writeInt(r);
+        }
+      } else {
+        out.writeUTF(message);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(className + ": encode", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public static void main(String[] args) {
+    WorkerPool.serve(StrategyWorker::handle, () -> health.leakedThreads() > 0);
+  }
+}
@@ -15,6 +15,8 @@ public interface Student {
   // Return value `ret` must hold:
   // * ret.length == 10 and the elements of ret are all different
   // * forall school in ret, 0 <= school < schools.length
+  // Annotate your class with @Stateless if it keeps no state between calls, so
+  // the tournament can reuse one instance instead of constructing it every trial.
   public int[] getApplications(
       int N,
       double S,
@@ -5,6 +5,7 @@
 import java.util.Arrays;
 import java.util.List;
 
+@Stateless
 public class Student_holist implements Student {
   private class School implements Comparable<School> {
     public School(int i, double q) {
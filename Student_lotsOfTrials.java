@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 
+@Nondeterministic
 public class Student_lotsOfTrials implements Student {
 
     private static final int TRIALS_PER = 15;
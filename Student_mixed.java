@@ -3,6 +3,7 @@
 import java.util.Arrays;
 import java.util.List;
 
+@Stateless
 public class Student_mixed implements Student {
 
     // from Student_holist
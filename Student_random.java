@@ -6,6 +6,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
+@Stateless
+@Nondeterministic
 public class Student_random implements Student {
   private class School implements Comparable<School> {
     public School(int i, double q) {
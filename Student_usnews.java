@@ -4,6 +4,7 @@
 
 import java.util.List;
 
+@Stateless
 public class Student_usnews implements Student {
   public int[] getApplications(
       int N,
@@ -0,0 +1,255 @@
+// ThreadOutput.java: a System.out that can be silenced or redirected per thread
+// COS 445 SD1, Spring 2019
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+// Installed once as System.out. Each call goes to the calling thread's own
+// target: the original stdout, a capture stream, or nowhere. Threads a strategy
+// starts inherit its target. Discarded output never takes a lock, so silenced
+// strategies on many threads do not contend with each other.
+public class ThreadOutput extends PrintStream {
+  private static ThreadOutput installed = null;
+
+  // Shared marker for "discard"; never actually written to
+  private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+  private final PrintStream out;
+  private final InheritableThreadLocal<PrintStream> redirect = new InheritableThreadLocal<>();
+
+  private ThreadOutput(PrintStream out) {
+    super(out, true);
+    this.out = out;
+  }
+
+  static synchronized ThreadOutput install() {
+    if (installed == null) {
+      installed = new ThreadOutput(System.out);
+      System.setOut(installed);
+    }
+    return installed;
+  }
+
+  // Puts back the System.out that install replaced, so that a JVM running one
+  // job after another does not stack one ThreadOutput on another's
+  static synchronized void uninstall() {
+    if (installed != null) {
+      if (System.out == installed) {
+        System.setOut(installed.out);
+      }
+      installed = null;
+    }
+  }
+
+  // Wraps task so that anything it prints to System.out is dropped
+  static <T> Callable<T> silenced(Callable<T> task) {
+    return install().redirected(task, DISCARD);
+  }
+
+  // Wraps task so that anything it prints to System.out goes to sink instead
+  static <T> Callable<T> captured(Callable<T> task, OutputStream sink) {
+    return install().redirected(task, new PrintStream(sink, true));
+  }
+
+  private <T> Callable<T> redirected(Callable<T> task, PrintStream target) {
+    return () -> {
+      PrintStream prev = redirect.get();
+      redirect.set(target);
+      try {
+        return task.call();
+      } finally {
+        redirect.set(prev);
+      }
+    };
+  }
+
+  // null when this thread's output is discarded
+  private PrintStream target() {
+    PrintStream target = redirect.get();
+    if (target == null) {
+      return out;
+    }
+    return target == DISCARD ? null : target;
+  }
+
+  @Override
+  public void write(int b) {
+    PrintStream t = target();
+    if (t != null) t.write(b);
+  }
+
+  @Override
+  public void write(byte[] buf, int off, int len) {
+    PrintStream t = target();
+    if (t != null) t.write(buf, off, len);
+  }
+
+  @Override
+  public void flush() {
+    PrintStream t = target();
+    if (t != null) t.flush();
+  }
+
+  @Override
+  public void close() {
+    // strategies do not get to close the real stdout
+    if (redirect.get() == null) out.close();
+  }
+
+  @Override
+  public boolean checkError() {
+    PrintStream t = target();
+    return t != null && t.checkError();
+  }
+
+  @Override
+  public void print(boolean b) {
+    PrintStream t = target();
+    if (t != null) t.print(b);
+  }
+
+  @Override
+  public void print(char c) {
+    PrintStream t = target();
+    if (t != null) t.print(c);
+  }
+
+  @Override
+  public void print(int i) {
+    PrintStream t = target();
+    if (t != null) t.print(i);
+  }
+
+  @Override
+  public void print(long l) {
+    PrintStream t = target();
+    if (t != null) t.print(l);
+  }
+
+  @Override
+  public void print(float f) {
+    PrintStream t = target();
+    if (t != null) t.print(f);
+  }
+
+  @Override
+  public void print(double d) {
+    PrintStream t = target();
+    if (t != null) t.print(d);
+  }
+
+  @Override
+  public void print(char[] s) {
+    PrintStream t = target();
+    if (t != null) t.print(s);
+  }
+
+  @Override
+  public void print(String s) {
+    PrintStream t = target();
+    if (t != null) t.print(s);
+  }
+
+  @Override
+  public void print(Object obj) {
+    PrintStream t = target();
+    if (t != null) t.print(obj);
+  }
+
+  @Override
+  public void println() {
+    PrintStream t = target();
+    if (t != null) t.println();
+  }
+
+  @Override
+  public void println(boolean x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public void println(char x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public void println(int x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public void println(long x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public void println(float x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public void println(double x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public void println(char[] x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public void println(String x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public void println(Object x) {
+    PrintStream t = target();
+    if (t != null) t.println(x);
+  }
+
+  @Override
+  public PrintStream format(String format, Object... args) {
+    PrintStream t = target();
+    if (t != null) t.format(format, args);
+    return this;
+  }
+
+  @Override
+  public PrintStream format(Locale l, String format, Object... args) {
+    PrintStream t = target();
+    if (t != null) t.format(l, format, args);
+    return this;
+  }
+
+  @Override
+  public PrintStream append(CharSequence csq) {
+    PrintStream t = target();
+    if (t != null) t.append(csq);
+    return this;
+  }
+
+  @Override
+  public PrintStream append(CharSequence csq, int start, int end) {
+    PrintStream t = target();
+    if (t != null) t.append(csq, start, end);
+    return this;
+  }
+
+  @Override
+  public PrintStream append(char c) {
+    PrintStream t = target();
+    if (t != null) t.append(c);
+    return this;
+  }
+}
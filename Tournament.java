@@ -2,67 +2,308 @@
 // COS 445 Spring 2019
 // Created by Andrew Wonnacott
 
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 public abstract class Tournament<Strategy, Config> {
-  static final Random rand = new Random();
-  static final ExecutorService service =
-      Executors.newCachedThreadPool(
-          (Runnable r) -> {
-            Thread t = new Thread(r);
-            t.setDaemon(true);
-            return t;
-          });
+  static final ExecutorService service = Executors.newCachedThreadPool(Tournament::daemon);
 
-  // static <T> T runWithTimeout(String error, Callable<T> task, int msTimeout) {
-  //   T ret = null;
-  //   Future<T> future = service.submit(task);
-  //   try {
-  //     return future.get(msTimeout, TimeUnit.MILLISECONDS);
-  //   } catch (TimeoutException | InterruptedException | ExecutionException e) {
-  //     future.cancel(true);
-  //     throw new RuntimeException(error, e);
-  //   }
-  // }
-
-  static <T> T runWithTimeout(String error, Callable<T> task, int msTimeout) {
-    T ret = null;
-    Future<T> future = service.submit(task);
-    try {
-      return future.get(msTimeout, TimeUnit.MILLISECONDS);
-    } catch (TimeoutException e) {
-      future.cancel(true);
+  static Thread daemon(Runnable r) {
+    Thread t = new Thread(r);
+    t.setDaemon(true);
+    return t;
+  }
+
+  final StrategyHealth health = new StrategyHealth();
+  // where runAllWithTimeout records outcomes: health, except while warming up
+  private volatile StrategyHealth recording = health;
+
+  public StrategyHealth getHealth() {
+    return health;
+  }
+
+  private int timeoutMs = 60000;
+  private long callCpuBudgetMs = 10000;
+  private long trialCpuBudgetMs = 0;
+  private long callAllocationCapMb = 0;
+
+  // Wall-clock ceiling on a trial's strategy calls, for strategies that block
+  // instead of computing
+  public void setTimeoutMs(int timeoutMs) {
+    this.timeoutMs = timeoutMs;
+  }
+
+  // CPU time a single getApplications call may use; 0 for no limit
+  public void setCallCpuBudgetMs(long callCpuBudgetMs) {
+    this.callCpuBudgetMs = callCpuBudgetMs;
+  }
+
+  // CPU time all of one trial's calls may use together; 0 for no limit
+  public void setTrialCpuBudgetMs(long trialCpuBudgetMs) {
+    this.trialCpuBudgetMs = trialCpuBudgetMs;
+  }
+
+  long getCallCpuBudgetMs() {
+    return callCpuBudgetMs;
+  }
+
+  long getCallAllocationCapMb() {
+    return callAllocationCapMb;
+  }
+
+  int getTimeoutMs() {
+    return timeoutMs;
+  }
+
+  // Megabytes a single getApplications call may allocate; 0 for no limit
+  public void setCallAllocationCapMb(long callAllocationCapMb) {
+    this.callAllocationCapMb = callAllocationCapMb;
+  }
 
-      throw new RuntimeException(error + ": time out", e);
+  WorkerPool processes = null;
+  // tournaments with worker processes, for closeAll
+  private static final Set<Tournament<?, ?>> withProcesses = ConcurrentHashMap.newKeySet();
+
+  // Runs strategies in `count` long-lived worker JVMs instead of this one, each
+  // started with jvmArgs (e.g. -Xmx256m); 0 runs them in-process again. Only
+  // tournaments with a workerMainClass can.
+  public void setProcessWorkers(int count, List<String> jvmArgs) {
+    close();
+    if (count > 0) {
+      String mainClass = workerMainClass();
+      if (mainClass == null) {
+        throw new RuntimeException(
+            getClass().getName() + ": -DprocessWorkers needs a worker process, and has none");
+      }
+      processes = new WorkerPool(mainClass, count, jvmArgs);
+      withProcesses.add(this);
     }
-    catch (InterruptedException e) {
-      future.cancel(true);
-      throw new RuntimeException(error + ": interrupt", e);
+  }
+
+  // Stops this tournament's worker processes, if it has any. A JVM that exits
+  // stops them anyway; one that runs many jobs, like TournamentServer, must not
+  // wait for that.
+  public void close() {
+    if (processes != null) {
+      processes.close();
+      processes = null;
+      withProcesses.remove(this);
     }
-    catch (ExecutionException e) {
-      future.cancel(true);
-      throw new RuntimeException(error + ": execution", e);
+  }
+
+  // Closes every tournament that has worker processes
+  static void closeAll() {
+    for (Tournament<?, ?> tournament : withProcesses) {
+      tournament.close();
     }
   }
 
+  // Strategy calls given up on (timed out or cut off) that are still running,
+  // in any tournament; their threads cannot be stopped short of exiting the JVM
+  static int runawayCalls() {
+    return GuardedCall.runaways();
+  }
+
+  // Main class of the worker JVMs that run this tournament's strategies out of
+  // process, or null if it cannot run them there
+  protected String workerMainClass() {
+    return null;
+  }
+
+  // Starts every task at once and waits for them all against one shared deadline,
+  // so the wait is bounded by the slowest task rather than the sum of them.
+  // Each task is also held to the CPU budgets and allocation cap. A task that
+  // fails, runs over budget or misses the deadline is cancelled, reported on stderr and replaced
+  // by fallback; tasks of quarantined strategies get fallback without running.
+  <T> List<T> runAllWithTimeout(List<String> names, List<Callable<T>> tasks, T fallback) {
+    final StrategyHealth health = recording;
+    GuardedCall.Group group =
+        new GuardedCall.Group(callCpuBudgetMs, trialCpuBudgetMs, callAllocationCapMb);
+    List<GuardedCall<T>> calls = new ArrayList<>();
+    List<Future<T>> futures = new ArrayList<>();
+    for (int i = 0; i < tasks.size(); ++i) {
+      if (health.skip(names.get(i))) {
+        calls.add(null);
+        futures.add(null);
+        continue;
+      }
+      GuardedCall<T> call = group.add(names.get(i), tasks.get(i), health);
+      calls.add(call);
+      futures.add(call.submitTo(service));
+    }
+    // without thread CPU times the per-call budget falls back to wall-clock time
+    long wallMs = timeoutMs;
+    if (!GuardedCall.cpuTimeSupported && callCpuBudgetMs > 0) {
+      wallMs = Math.min(wallMs, callCpuBudgetMs);
+    }
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wallMs);
+    group.watch();
+    List<T> ret = new ArrayList<>();
+    int succeeded = 0;
+    try {
+      for (int i = 0; i < futures.size(); ++i) {
+        Future<T> future = futures.get(i);
+        GuardedCall<T> call = calls.get(i);
+        if (future == null) {
+          ret.add(fallback);
+          continue;
+        }
+        try {
+          T value = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (call.cutOff() == null) {
+            ret.add(value);
+            health.succeeded(names.get(i));
+            ++succeeded;
+            continue;
+          }
+        } catch (CancellationException e) {
+          // cut off by the watchdog; reported below
+        } catch (TimeoutException e) {
+          future.cancel(true);
+          call.abandon();
+          health.timedOut(names.get(i));
+          System.err.println(new RuntimeException(names.get(i) + ": time out", e));
+          ret.add(fallback);
+          continue;
+        } catch (InterruptedException e) {
+          for (int j = i; j < futures.size(); ++j) {
+            if (futures.get(j) != null) {
+              futures.get(j).cancel(true);
+              calls.get(j).abandon();
+            }
+          }
+          throw new RuntimeException(names.get(i) + ": interrupt", e);
+        } catch (ExecutionException e) {
+          health.failed(names.get(i));
+          System.err.println(new RuntimeException(names.get(i) + ": execution", e));
+          ret.add(fallback);
+          continue;
+        }
+        call.abandon();
+        health.cutOff(names.get(i));
+        System.err.println(new RuntimeException(names.get(i) + ": " + call.cutOff()));
+        ret.add(fallback);
+      }
+    } finally {
+      group.unwatch();
+    }
+    if (succeeded < ret.size()) {
+      fellBack.get()[0] = true;
+    }
+    return ret;
+  }
+
+  // Set on a thread once runAllWithTimeout there has put a fallback in place of
+  // some strategy's answer; such a trial is not what its strategies would play,
+  // so it is kept out of the trial cache
+  private static final ThreadLocal<boolean[]> fellBack =
+      ThreadLocal.withInitial(() -> new boolean[1]);
+
+  // No-argument constructor of each strategy class as a generated Supplier,
+  // looked up once per class instead of reflectively on every trial
+  private static final ClassValue<Supplier<?>> factories =
+      new ClassValue<Supplier<?>>() {
+        @Override
+        protected Supplier<?> computeValue(Class<?> type) {
+          try {
+            MethodHandles.Lookup lookup =
+                MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            MethodHandle ctor = lookup.findConstructor(type, MethodType.methodType(void.class));
+            if (!lookup.hasFullPrivilegeAccess()) {
+              // strategies from another class loader (see StrategyCompiler) are
+              // in another module, and the metafactory needs full access
+              MethodHandle newInstance = ctor.asType(MethodType.methodType(Object.class));
+              return () -> {
+                try {
+                  return newInstance.invokeExact();
+                } catch (RuntimeException | Error e) {
+                  throw e;
+                } catch (Throwable t) {
+                  throw new RuntimeException(t);
+                }
+              };
+            }
+            CallSite site =
+                LambdaMetafactory.metafactory(
+                    lookup,
+                    "get",
+                    MethodType.methodType(Supplier.class),
+                    MethodType.methodType(Object.class),
+                    ctor,
+                    MethodType.methodType(type));
+            return (Supplier<?>) site.getTarget().invokeExact();
+          } catch (Throwable t) {
+            throw new RuntimeException(type.getName() + ": no usable constructor", t);
+          }
+        }
+      };
+
+  // @Stateless strategies: one instance per class per worker thread
+  private static final ClassValue<ThreadLocal<?>> reused =
+      new ClassValue<ThreadLocal<?>>() {
+        @Override
+        protected ThreadLocal<?> computeValue(Class<?> type) {
+          return ThreadLocal.withInitial(factories.get(type));
+        }
+      };
+
+  static <T> T newStrategy(Class<T> clazz) {
+    if (clazz.isAnnotationPresent(Stateless.class)) {
+      return clazz.cast(reused.get(clazz).get());
+    }
+    return clazz.cast(factories.get(clazz).get());
+  }
+
+  // Where strategies are loaded from: this class's loader, or with
+  // -DcompileStrategies=dir the Student_*.java files in dir, compiled in-process
+  // and reloaded whenever one of them is edited
+  static ClassLoader strategyLoader() {
+    String dir = System.getProperty("compileStrategies");
+    if (dir == null) {
+      return Tournament.class.getClassLoader();
+    }
+    return StrategyCompiler.loader(Paths.get(dir));
+  }
+
   final List<Class<? extends Strategy>> strategies;
+  // what strategies came from, for loading others to compare with them
+  final ClassLoader strategyLoader;
 
   Tournament(Class<Strategy> clazz, List<String> strategyNames) {
+    strategyLoader = strategyLoader();
     List<Class<? extends Strategy>> strategies = new ArrayList<>();
     for (String name : strategyNames) {
       try {
-        strategies.add(Class.forName(name).asSubclass(clazz));
+        strategies.add(Class.forName(name, true, strategyLoader).asSubclass(clazz));
       } catch (ReflectiveOperationException roe) {
         throw new RuntimeException(roe);
       }
@@ -70,98 +311,1187 @@ public abstract class Tournament<Strategy, Config> {
     this.strategies = Collections.unmodifiableList(strategies);
   }
 
-  public double[] oneEachTrials(int numTrials, Config config) {
-    double[] res = new double[strategies.size()];
+  private int workers = 1;
 
-    for (int i = 0; i < strategies.size(); ++i) {
-      res[i] = 0;
+  // Number of trials to run at once; 1 runs them one after another on the calling thread
+  public void setWorkers(int workers) {
+    assert workers >= 1 : "Need at least one worker, got " + workers;
+    this.workers = workers;
+    this.adaptive = null;
+  }
+
+  public int getWorkers() {
+    return adaptive == null ? workers : adaptive.target();
+  }
+
+  private AdaptiveParallelism adaptive = null;
+
+  // Lets the number of trials run at once float between min and max, following
+  // measured throughput; setWorkers goes back to a fixed count
+  public void setAdaptiveWorkers(int min, int max) {
+    adaptive = new AdaptiveParallelism(min, max);
+  }
+
+  // Reads the harness options given as -D flags on the java command line
+  public void configureFromProperties() {
+    setWorkers(Integer.getInteger("workers", workers));
+    int maxWorkers = Integer.getInteger("maxWorkers", 0);
+    if (maxWorkers > 0) {
+      setAdaptiveWorkers(Integer.getInteger("minWorkers", 1), maxWorkers);
+    }
+    Long seed = Long.getLong("seed");
+    if (seed != null) {
+      setSeed(seed);
     }
-    for (int ign = 0; ign < numTrials; ++ign) {
-      double[] ret = runTrial(this.strategies, config);
-      for (int i = 0; i < strategies.size(); ++i) {
-        res[i] += ret[i];
+    // -Dcheckpoint=file saves progress there and resumes from it if it exists
+    String checkpointPath = System.getProperty("checkpoint");
+    if (checkpointPath != null) {
+      setCheckpoint(checkpointPath, Long.getLong("checkpointEverySec", 60) * 1000);
+      if (seed != null && seed != getSeed()) {
+        throw new RuntimeException(checkpointPath + ": checkpoint has seed " + getSeed());
       }
     }
-    for (int i = 0; i < strategies.size(); ++i) {
-      res[i] /= numTrials;
+    // -DleagueResults=file: a league replaying the rooms saved there takes the
+    // seed they were played with, unless -Dseed chose another, as the league's
+    // plan is drawn from the seed; see incrementalLeagueTrials
+    String leagueResults = System.getProperty("leagueResults");
+    if (leagueResults != null && seed == null && checkpoint == null) {
+      Long saved = LeagueResults.seed(Paths.get(leagueResults));
+      if (saved != null) {
+        setSeed(saved);
+      }
     }
+    // -Dshard=i/n runs only shard i of n, leaving its partial sums in the
+    // checkpoint for Shards to merge
+    String shard = System.getProperty("shard");
+    if (shard != null) {
+      String[] parts = shard.split("/");
+      if (parts.length != 2 || checkpoint == null) {
+        throw new RuntimeException("shard: expected -Dshard=i/n and a -Dcheckpoint file");
+      }
+      setShard(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+    System.err.println("seed = " + getSeed());
+    // -DquarantineAfter=k stops calling a strategy after k failures in a row
+    Integer quarantineAfter = Integer.getInteger("quarantineAfter");
+    if (quarantineAfter != null) {
+      health.setQuarantineAfter(quarantineAfter);
+    }
+    String targetStdError = System.getProperty("targetStdError", "0");
+    String targetSeparation = System.getProperty("targetSeparation", "0");
+    setStoppingRule(
+        Double.parseDouble(targetStdError),
+        Double.parseDouble(targetSeparation),
+        Integer.getInteger("maxTrials", 0));
+    setTimeoutMs(Integer.getInteger("timeoutMs", timeoutMs));
+    setCallCpuBudgetMs(Long.getLong("cpuBudgetMs", callCpuBudgetMs));
+    setTrialCpuBudgetMs(Long.getLong("trialCpuBudgetMs", trialCpuBudgetMs));
+    setCallAllocationCapMb(Long.getLong("allocationCapMb", callAllocationCapMb));
+    setVarianceReduction(
+        Boolean.getBoolean("commonRandomNumbers"), Boolean.getBoolean("antithetic"));
+    setPipelineDepth(Integer.getInteger("pipelineDepth", pipelineDepth));
+    String warmupTolerance = System.getProperty("warmupTolerance", "0.1");
+    setWarmup(Integer.getInteger("warmupRounds", 0), Double.parseDouble(warmupTolerance));
+    // -DtrialCache=dir reuses trials played before, there; see TrialCache
+    setTrialCache(System.getProperty("trialCache"), Long.getLong("trialCacheMb", 256));
+    int processWorkers = Integer.getInteger("processWorkers", 0);
+    if (processWorkers > 0) {
+      String jvmArgs = System.getProperty("workerJvmArgs", "").trim();
+      setProcessWorkers(
+          processWorkers, jvmArgs.isEmpty() ? List.of() : Arrays.asList(jvmArgs.split("\\s+")));
+    }
+  }
 
-    return res;
+  private long seed = new SplittableRandom().nextLong();
+  private final AtomicLong runs = new AtomicLong();
+  // numbers each call to runTrials or runTrialsUntil, for checkpoints
+  private final AtomicLong batchKeys = new AtomicLong();
+
+  // Every trial's randomness is derived from this seed, the index of the batch of
+  // trials it belongs to and its index within that batch
+  public void setSeed(long seed) {
+    this.seed = seed;
+    runs.set(0);
+    batchKeys.set(0);
   }
 
-  public <Strategy_T extends Strategy> double[] withExtraTrials(
-      Class<Strategy_T> clazz, int numTrials, Config config) {
-    double[] res = new double[strategies.size() + 1];
+  public long getSeed() {
+    return seed;
+  }
 
-    for (int i = 0; i < strategies.size() + 1; ++i) {
-      res[i] = 0;
+  // SplitMix64 finalizer: spreads consecutive inputs over the whole range of longs
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  // Seed of trial `trial` in the `run`th batch of trials this tournament started.
+  // Passing it to runTrial reproduces that one trial on its own.
+  public long trialSeed(long run, long trial) {
+    return mix(mix(seed + GOLDEN_GAMMA * (run + 1)) + GOLDEN_GAMMA * (trial + 1));
+  }
+
+  // `mirrored` asks for the antithetic partner of the trial with this seed
+  interface Trial {
+    double[] run(int trial, long seed, boolean mirrored);
+  }
+
+  // A trial split into stages that a pipeline can overlap with other trials':
+  // drawing the instance, getting the strategies' moves (the slow part), then
+  // matching and scoring
+  interface StagedTrial<I, M> extends Trial {
+    I generate(int trial, long seed, boolean mirrored);
+
+    M play(I instance);
+
+    double[] settle(I instance, M moves);
+
+    @Override
+    default double[] run(int trial, long seed, boolean mirrored) {
+      I instance = generate(trial, seed, mirrored);
+      return settle(instance, play(instance));
+    }
+
+    // The same stages with f applied to the scores
+    default StagedTrial<I, M> then(UnaryOperator<double[]> f) {
+      final StagedTrial<I, M> outer = this;
+      return new StagedTrial<I, M>() {
+        public I generate(int trial, long seed, boolean mirrored) {
+          return outer.generate(trial, seed, mirrored);
+        }
+
+        public M play(I instance) {
+          return outer.play(instance);
+        }
+
+        public double[] settle(I instance, M moves) {
+          return f.apply(outer.settle(instance, moves));
+        }
+      };
+    }
+  }
+
+  // The staged form of runTrial(room, config, ...), or null if this tournament
+  // cannot split its trials into stages
+  protected StagedTrial<?, ?> stagedTrial(
+      List<Class<? extends Strategy>> room, Config config) {
+    return null;
+  }
+
+  // A trial of room, staged if possible
+  private Trial trialOf(List<Class<? extends Strategy>> room, Config config) {
+    StagedTrial<?, ?> staged = stagedTrial(room, config);
+    Trial trial =
+        staged != null ? staged : (t, seed, mirrored) -> runTrial(room, config, seed, mirrored);
+    return cached(room, config, trial);
+  }
+
+  private TrialCache trialCache = null;
+
+  // Keeps every trial's scores in dir, up to capMb megabytes, and takes them
+  // from there instead of playing a trial again; see TrialCache. Trials only
+  // repeat between runs with the same -Dseed, and with the same harness: the
+  // key includes Fingerprint.ofHarness, so editing the rules or scoring misses
+  // every trial played before. It also includes config.toString(), so a
+  // Config without one never hits. Trials served this way are not pipelined.
+  public void setTrialCache(String dir, long capMb) {
+    trialCache = dir == null ? null : new TrialCache(Paths.get(dir), capMb * 1000000);
+  }
+
+  public TrialCache getTrialCache() {
+    return trialCache;
+  }
+
+  // trial, going through the trial cache unless a strategy in room is
+  // @Nondeterministic
+  private Trial cached(List<Class<? extends Strategy>> room, Config config, Trial trial) {
+    final TrialCache cache = trialCache;
+    if (cache == null) {
+      return trial;
+    }
+    List<String> parts = new ArrayList<>();
+    parts.add(getClass().getName());
+    // the rules and scoring are code too
+    parts.add(Fingerprint.ofHarness(getClass()));
+    parts.add(String.valueOf(config));
+    for (Class<? extends Strategy> clazz : room) {
+      if (clazz.isAnnotationPresent(Nondeterministic.class)) {
+        return trial;
+      }
+      parts.add(clazz.getName());
+      parts.add(Fingerprint.of(clazz));
+    }
+    final String key = TrialCache.hash(parts);
+    return (t, seed, mirrored) -> {
+      double[] ret = cache.get(key, seed, mirrored);
+      if (ret == null) {
+        boolean[] degraded = fellBack.get();
+        degraded[0] = false;
+        ret = trial.run(t, seed, mirrored);
+        if (!degraded[0]) {
+          cache.put(key, seed, mirrored, ret);
+        }
+      }
+      return ret;
+    };
+  }
+
+  private int pipelineDepth = 0;
+
+  // With a depth above 0, staged trials run as a pipeline: one thread draws
+  // instances ahead of the trials being played, `workers` threads play them and
+  // the calling thread matches and scores them, each stage handing on to the
+  // next through a queue of at most depth trials
+  public void setPipelineDepth(int depth) {
+    assert depth >= 0 : "Bad pipeline depth " + depth;
+    pipelineDepth = depth;
+  }
+
+  private boolean commonRandomNumbers = false;
+  private boolean antithetic = false;
+
+  // With common random numbers every batch of trials draws the same trial seeds,
+  // so runs being compared (one candidate against another, or a candidate
+  // against the room it joins) see the same markets, and withReplacementTrials
+  // shares one market, and one call to each incumbent, across every position of
+  // a trial. With antithetic draws trials come in pairs sharing a seed, the
+  // second mirroring every uniform draw u to 1 - u, so a lucky market is
+  // balanced by an unlucky one; only tournaments that mirrorsDraws can.
+  public void setVarianceReduction(boolean commonRandomNumbers, boolean antithetic) {
+    if (antithetic && !mirrorsDraws()) {
+      throw new RuntimeException(
+          getClass().getName() + ": -Dantithetic needs mirrored trials, and it has none");
+    }
+    this.commonRandomNumbers = commonRandomNumbers;
+    this.antithetic = antithetic;
+  }
+
+  private long nextRun() {
+    return commonRandomNumbers ? 0 : runs.getAndIncrement();
+  }
+
+  // Sees each trial's score vector as soon as the trial finishes, in whatever
+  // order trials finish; called on the worker thread, so it must be thread-safe
+  public interface TrialListener {
+    void trialDone(int trial, double[] scores);
+  }
+
+  private final List<TrialListener> listeners = new CopyOnWriteArrayList<>();
+
+  public void addListener(TrialListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(TrialListener listener) {
+    listeners.remove(listener);
+  }
+
+  private Checkpoint checkpoint = null;
+
+  // Saves the run's progress to path at least every intervalMs and after each
+  // batch of trials. If path already holds a checkpoint, the run resumes from
+  // it: the seed and quarantined strategies are restored and trials already in
+  // it are skipped, so the totals come out as if it had never stopped. The
+  // program must ask for the same batches of trials in the same order.
+  public void setCheckpoint(String path, long intervalMs) {
+    checkpoint = new Checkpoint(Paths.get(path), intervalMs);
+    if (checkpoint.restored()) {
+      setSeed(checkpoint.seed());
+      for (String name : checkpoint.quarantined()) {
+        health.quarantine(name);
+      }
+      System.err.println(path + ": resuming from checkpoint");
+    }
+  }
+
+  private int shardIndex = 0;
+  private int shardCount = 1;
+
+  // Runs only the trials t with t % count == index of every batch; the other
+  // shards' processes run the rest, and Checkpoint.merge adds up their sums
+  public void setShard(int index, int count) {
+    assert 0 <= index && index < count : "Bad shard " + index + "/" + count;
+    shardIndex = index;
+    shardCount = count;
+  }
+
+  private boolean skip(Checkpoint.Batch batch, int t) {
+    return t % shardCount != shardIndex || batch.isDone(t);
+  }
+
+  private Checkpoint.Batch newBatch(int width, int listened) {
+    long key = batchKeys.getAndIncrement();
+    return checkpoint == null
+        ? new Checkpoint.Batch(width, listened)
+        : checkpoint.batch(key, width, listened);
+  }
+
+  private void finished(Checkpoint.Batch batch, int trial, double[] scores) {
+    batch.record(trial, scores);
+    if (!listeners.isEmpty()) {
+      double[] listened =
+          scores.length == batch.listened ? scores : Arrays.copyOf(scores, batch.listened);
+      for (TrialListener listener : listeners) {
+        listener.trialDone(trial, listened);
+      }
+    }
+    if (checkpoint != null) {
+      checkpoint.maybeSave(seed, health);
+    }
+  }
+
+  private void saveCheckpoint() {
+    if (checkpoint != null) {
+      checkpoint.save(seed, health);
+    }
+  }
+
+  // Runs trials 0 through numTrials - 1 and adds up the score vector each returns.
+  ScoreSums runTrials(int numTrials, int width, Trial trial) {
+    return runTrials(numTrials, numTrials, width, trial);
+  }
+
+  // As above, but trial t draws the seed of trial t % period, for run modes that
+  // flatten several kinds of trial into one batch
+  ScoreSums runTrials(int numTrials, int period, int width, Trial trial) {
+    Checkpoint.Batch batch = newBatch(width, width);
+    runBatch(nextRun(), 0, numTrials, period, batch, trial);
+    saveCheckpoint();
+    return batch.sums;
+  }
+
+  private long seedOf(long run, int t, int period) {
+    int index = t % period;
+    return trialSeed(run, antithetic ? index / 2 : index);
+  }
+
+  private boolean mirroredOf(int t, int period) {
+    return antithetic && (t % period) % 2 == 1;
+  }
+
+  private double[] runOne(long run, int t, int period, Trial trial) {
+    return trial.run(t, seedOf(run, t, period), mirroredOf(t, period));
+  }
+
+  // Runs trials from through to - 1 of the given run into batch, skipping any it
+  // already has. Independent trials are spread over `workers` threads (or as
+  // many as the adaptive controller currently wants); the sums are exact, so the
+  // totals are the same whichever trial finishes first.
+  private void runBatch(
+      long run, int from, int to, int period, Checkpoint.Batch batch, Trial trial) {
+    if (pipelineDepth > 0 && trial instanceof StagedTrial) {
+      runPipelined(run, from, to, period, batch, (StagedTrial<?, ?>) trial);
+      return;
+    }
+    final int threads = Math.min(adaptive == null ? workers : adaptive.max, to - from);
+    if (threads <= 1) {
+      for (int t = from; t < to; ++t) {
+        if (!skip(batch, t)) {
+          finished(batch, t, runOne(run, t, period, trial));
+        }
+      }
+      return;
+    }
+    if (adaptive != null) {
+      adaptive.startRun();
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads, Tournament::daemon);
+    // trials submitted but not finished, held under the controller's target
+    final int[] inFlight = {0};
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = from; t < to; ++t) {
+        if (skip(batch, t)) {
+          continue;
+        }
+        synchronized (inFlight) {
+          while (inFlight[0] >= getWorkers()) {
+            inFlight.wait();
+          }
+          ++inFlight[0];
+        }
+        final int trialNum = t;
+        futures.add(
+            pool.submit(
+                () -> {
+                  try {
+                    finished(batch, trialNum, runOne(run, trialNum, period, trial));
+                  } finally {
+                    if (adaptive != null) {
+                      adaptive.completed();
+                    }
+                    synchronized (inFlight) {
+                      --inFlight[0];
+                      inFlight.notifyAll();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("trials: interrupt", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("trials: execution", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  // A trial on its way through the pipeline; END tells a stage to finish
+  private static class InFlight<I, M> {
+    final int trial;
+    final I instance;
+    M moves;
+
+    InFlight(int trial, I instance) {
+      this.trial = trial;
+      this.instance = instance;
+    }
+  }
+
+  private static final InFlight<?, ?> END = new InFlight<>(-1, null);
+
+  @SuppressWarnings("unchecked")
+  private static <I, M> InFlight<I, M> end() {
+    return (InFlight<I, M>) END;
+  }
+
+  // runBatch as a pipeline of bounded queues: while strategies play one trial,
+  // the next trials' instances are drawn and finished ones matched and scored.
+  // A full queue holds up the stage feeding it.
+  private <I, M> void runPipelined(
+      long run, int from, int to, int period, Checkpoint.Batch batch, StagedTrial<I, M> trial) {
+    final int players = Math.max(1, Math.min(adaptive == null ? workers : adaptive.max, to - from));
+    final BlockingQueue<InFlight<I, M>> generated = new ArrayBlockingQueue<>(pipelineDepth);
+    final BlockingQueue<InFlight<I, M>> played = new ArrayBlockingQueue<>(pipelineDepth);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final Thread settler = Thread.currentThread();
+    final List<Thread> stages = new ArrayList<>();
+    // trials being played, held under the adaptive controller's target
+    final int[] playing = {0};
+    Runnable generate =
+        () -> {
+          try {
+            for (int t = from; t < to; ++t) {
+              if (!skip(batch, t)) {
+                I instance = trial.generate(t, seedOf(run, t, period), mirroredOf(t, period));
+                generated.put(new InFlight<>(t, instance));
+              }
+            }
+            for (int p = 0; p < players; ++p) {
+              generated.put(end());
+            }
+          } catch (InterruptedException e) {
+            // the batch failed elsewhere
+          }
+        };
+    Runnable play =
+        () -> {
+          try {
+            for (InFlight<I, M> item = generated.take(); item != END; item = generated.take()) {
+              synchronized (playing) {
+                while (playing[0] >= getWorkers()) {
+                  playing.wait();
+                }
+                ++playing[0];
+              }
+              try {
+                item.moves = trial.play(item.instance);
+              } finally {
+                synchronized (playing) {
+                  --playing[0];
+                  playing.notifyAll();
+                }
+              }
+              played.put(item);
+            }
+            played.put(end());
+          } catch (InterruptedException e) {
+            // the batch failed elsewhere
+          }
+        };
+    stages.add(Tournament.daemon(generate));
+    for (int p = 0; p < players; ++p) {
+      stages.add(Tournament.daemon(play));
+    }
+    for (Thread stage : stages) {
+      stage.setUncaughtExceptionHandler(
+          (thread, e) -> {
+            failure.compareAndSet(null, e);
+            settler.interrupt();
+          });
+      stage.start();
+    }
+    if (adaptive != null) {
+      adaptive.startRun();
     }
-    for (int ign = 0; ign < numTrials; ++ign) {
-      double[] ret = withExtraTrial(clazz, config);
-      for (int i = 0; i < strategies.size() + 1; ++i) {
-        res[i] += ret[i];
+    try {
+      for (int ended = 0; ended < players; ) {
+        InFlight<I, M> item = played.take();
+        if (item == END) {
+          ++ended;
+          continue;
+        }
+        finished(batch, item.trial, trial.settle(item.instance, item.moves));
+        if (adaptive != null) {
+          adaptive.completed();
+        }
+      }
+    } catch (InterruptedException e) {
+      if (failure.get() != null) {
+        throw new RuntimeException("trials: execution", failure.get());
+      }
+      throw new RuntimeException("trials: interrupt", e);
+    } finally {
+      for (Thread stage : stages) {
+        stage.interrupt();
       }
     }
+  }
+
+  private int warmupRounds = 0;
+  private double warmupTolerance = 0.1;
+  private final Set<Class<?>> warmed = ConcurrentHashMap.newKeySet();
+  // changes in time smaller than this are noise, however large relatively
+  private static final double WARMUP_NOISE_MS = 1;
+
+  // Before the first trials of a room with strategies not yet warmed up, plays up
+  // to `rounds` throwaway trials of it until each strategy's CPU time per call
+  // and the whole trial's time (strategies and matching) have moved by less than
+  // `tolerance`, as a fraction, two rounds running: by then the JIT has compiled
+  // the hot paths. Warm-up trials have seeds of their own and their own health
+  // record, so they change neither the results nor the failure counts.
+  public void setWarmup(int rounds, double tolerance) {
+    assert rounds >= 0 && tolerance > 0 : "Bad warm-up " + rounds + ", " + tolerance;
+    warmupRounds = rounds;
+    warmupTolerance = tolerance;
+  }
+
+  private boolean steady(double before, double after) {
+    return Math.abs(after - before)
+        <= Math.max(WARMUP_NOISE_MS, warmupTolerance * Math.max(before, after));
+  }
+
+  synchronized void warmUp(List<Class<? extends Strategy>> room, Config config) {
+    if (warmupRounds == 0 || warmed.containsAll(room)) {
+      return;
+    }
+    Map<String, Double> lastPerCall = null;
+    double lastMs = 0;
+    int steadyRounds = 0;
+    int round = 0;
+    try {
+      for (; round < warmupRounds && steadyRounds < 2; ++round) {
+        StrategyHealth scratch = new StrategyHealth();
+        recording = scratch;
+        long start = System.nanoTime();
+        // run -1 is never used by counted trials
+        runTrial(room, config, trialSeed(-1, round));
+        double ms = (System.nanoTime() - start) / 1e6;
+        Map<String, Double> perCall = scratch.cpuMsPerCall();
+        boolean steady = lastPerCall != null && steady(lastMs, ms);
+        for (Map.Entry<String, Double> e : perCall.entrySet()) {
+          Double before = lastPerCall == null ? null : lastPerCall.get(e.getKey());
+          steady = steady && before != null && steady(before, e.getValue());
+        }
+        steadyRounds = steady ? steadyRounds + 1 : 0;
+        lastPerCall = perCall;
+        lastMs = ms;
+      }
+    } finally {
+      recording = health;
+    }
+    warmed.addAll(room);
+    System.err.println(
+        "warm-up: "
+            + round
+            + " trials"
+            + (steadyRounds < 2 ? ", stopped before timings settled" : "")
+            + String.format(", last %.2f ms", lastMs));
+  }
+
+  // room with clazz in the first position, to warm clazz up alongside it
+  private List<Class<? extends Strategy>> withFirst(Class<? extends Strategy> clazz) {
+    List<Class<? extends Strategy>> ret = new ArrayList<>(strategies);
+    ret.set(0, clazz);
+    return ret;
+  }
+
+  private double targetStdError = 0;
+  private double targetSeparation = 0;
+  private int maxTrials = 0;
+
+  // Lets oneEachTrials, withExtraTrials and bySelfTrials run past the number of
+  // trials asked for, up to maxTrials, until every strategy's mean score has a
+  // standard error of at most targetStdError and each pair of strategies next
+  // to each other in the ranking is at least targetSeparation standard errors
+  // apart. A target of 0 is ignored; maxTrials of 0 turns the rule off.
+  public void setStoppingRule(double targetStdError, double targetSeparation, int maxTrials) {
+    assert targetStdError >= 0 && targetSeparation >= 0 : "Targets must not be negative";
+    this.targetStdError = targetStdError;
+    this.targetSeparation = targetSeparation;
+    this.maxTrials = maxTrials;
+  }
+
+  // Like runTrials, but with a stopping rule set keeps adding batches of trials
+  // until it is met. Columns with the same group (copies of one strategy) are
+  // averaged together for the rule. It is judged on exact sums of scores and
+  // squared scores after whole batches, so the same seed always stops after the
+  // same number of trials. Those sums ride along as extra columns, so they are
+  // checkpointed with the scores.
+  ScoreSums runTrialsUntil(int minTrials, int width, int[] groups, Trial trial) {
+    if (maxTrials <= minTrials || (targetStdError <= 0 && targetSeparation <= 0)) {
+      return runTrials(minTrials, width, trial);
+    }
+    if (shardCount > 1) {
+      throw new RuntimeException("trials: a stopping rule needs every trial, so cannot be sharded");
+    }
+    final long run = nextRun();
+    final int numGroups = Arrays.stream(groups).max().getAsInt() + 1;
+    final int[] copies = new int[numGroups];
+    for (int g : groups) {
+      copies[g]++;
+    }
+    // scores, then per-group means, then their squares
+    final Checkpoint.Batch batch = newBatch(width + 2 * numGroups, width);
+    final UnaryOperator<double[]> extend =
+        trialScores -> {
+          double[] scores = Arrays.copyOf(trialScores, width + 2 * numGroups);
+          for (int i = 0; i < width; ++i) {
+            scores[width + groups[i]] += scores[i] / copies[groups[i]];
+          }
+          for (int g = width; g < width + numGroups; ++g) {
+            scores[g + numGroups] = scores[g] * scores[g];
+          }
+          return scores;
+        };
+    final Trial grouped =
+        trial instanceof StagedTrial
+            ? ((StagedTrial<?, ?>) trial).then(extend)
+            : (t, seed, mirrored) -> extend.apply(trial.run(t, seed, mirrored));
+    int done = 0;
+    int next = minTrials;
+    for (int look = 0; next > done; ++look) {
+      runBatch(run, done, next, Integer.MAX_VALUE, batch, grouped);
+      done = next;
+      Integer decided = batch.decision(look);
+      if (decided != null) {
+        next = decided;
+        continue;
+      }
+      double needed =
+          trialsNeeded(
+              done,
+              batch.sums.slice(width, width + numGroups).totals(),
+              batch.sums.slice(width + numGroups, width + 2 * numGroups).totals());
+      if (needed > done) {
+        // grow by at least a round of workers, at most doubling between looks
+        int step = (int) Math.min(Math.ceil(needed) - done, done);
+        next = Math.min(maxTrials, done + Math.max(step, getWorkers()));
+      }
+      batch.decide(next);
+      saveCheckpoint();
+    }
+    System.err.println("trials: stopped after " + done);
+    return batch.sums.slice(0, width);
+  }
+
+  // Estimated total trials for the stopping rule to hold, from n trials with
+  // per-group sums and sums of squares; n or fewer means it holds now
+  private double trialsNeeded(int n, double[] sums, double[] squares) {
+    if (n < 2) {
+      return 2;
+    }
+    final int G = sums.length;
+    double[] mean = new double[G];
+    double[] se = new double[G];
+    for (int g = 0; g < G; ++g) {
+      mean[g] = sums[g] / n;
+      double variance = Math.max(0, (squares[g] - n * mean[g] * mean[g]) / (n - 1));
+      se[g] = Math.sqrt(variance / n);
+    }
+    // standard errors shrink like 1 / sqrt(n)
+    double ratio = 0;
+    if (targetStdError > 0) {
+      for (int g = 0; g < G; ++g) {
+        ratio = Math.max(ratio, se[g] / targetStdError);
+      }
+    }
+    if (targetSeparation > 0) {
+      Integer[] order = new Integer[G];
+      for (int g = 0; g < G; ++g) {
+        order[g] = g;
+      }
+      Arrays.sort(order, (a, b) -> Double.compare(mean[b], mean[a]));
+      for (int r = 0; r + 1 < G; ++r) {
+        int a = order[r], b = order[r + 1];
+        double gap = mean[a] - mean[b];
+        double seGap = Math.sqrt(se[a] * se[a] + se[b] * se[b]);
+        if (seGap == 0) {
+          continue;
+        }
+        ratio =
+            gap == 0
+                ? Double.POSITIVE_INFINITY
+                : Math.max(ratio, targetSeparation * seGap / gap);
+      }
+    }
+    return ratio <= 1 ? n : n * ratio * ratio;
+  }
+
+  // Column groups for a room: columns running the same class share a group
+  private int[] groupsOf(List<Class<? extends Strategy>> room) {
+    List<Class<? extends Strategy>> distinct = new ArrayList<>();
+    int[] ret = new int[room.size()];
+    for (int i = 0; i < ret.length; ++i) {
+      if (!distinct.contains(room.get(i))) {
+        distinct.add(room.get(i));
+      }
+      ret[i] = distinct.indexOf(room.get(i));
+    }
+    return ret;
+  }
+
+  public double[] oneEachTrials(int numTrials, Config config) {
+    warmUp(strategies, config);
+    ScoreSums sums =
+        runTrialsUntil(
+            numTrials,
+            strategies.size(),
+            groupsOf(strategies),
+            trialOf(strategies, config));
+    double[] res = sums.totals();
+    for (int i = 0; i < strategies.size(); ++i) {
+      res[i] /= sums.count();
+    }
+
+    return res;
+  }
+
+  public <Strategy_T extends Strategy> double[] withExtraTrials(
+      Class<Strategy_T> clazz, int numTrials, Config config) {
+    List<Class<? extends Strategy>> withExtraStrategies = new ArrayList<>(strategies);
+    withExtraStrategies.add(clazz);
+    warmUp(withExtraStrategies, config);
+    ScoreSums sums =
+        runTrialsUntil(
+            numTrials,
+            strategies.size() + 1,
+            groupsOf(withExtraStrategies),
+            trialOf(withExtraStrategies, config));
+    double[] res = sums.totals();
     for (int i = 0; i < strategies.size() + 1; ++i) {
-      res[i] /= numTrials;
+      res[i] /= sums.count();
     }
 
     return res;
   }
 
   public <Strategy_T extends Strategy> double[] withExtraTrial(
-      Class<Strategy_T> clazz, Config config) {
+      Class<Strategy_T> clazz, Config config, long seed, boolean mirrored) {
     // Initialize students
     List<Class<? extends Strategy>> withExtraStrategies = new ArrayList<>(strategies);
     withExtraStrategies.add(clazz);
-    return runTrial(withExtraStrategies, config);
+    return runTrial(withExtraStrategies, config, seed, mirrored);
   }
 
   public <Strategy_T extends Strategy> double[] withReplacementTrials(
       Class<Strategy_T> clazz, int numTrials, Config config) {
-    double[] res = new double[strategies.size()];
-    for (int i = 0; i < strategies.size(); ++i) {
-      res[i] = withReplacementTrials(clazz, numTrials, config, i);
+    final int N = strategies.size();
+    warmUp(withFirst(clazz), config);
+    if (commonRandomNumbers) {
+      // trial t has the same market at every position, so it is shared
+      double[] res =
+          runTrials(
+                  numTrials,
+                  N,
+                  (t, seed, mirrored) ->
+                      replacementTrial(strategies, clazz, config, seed, mirrored))
+              .totals();
+      for (int i = 0; i < N; ++i) {
+        res[i] /= numTrials;
+      }
+      return res;
     }
-    return res;
-  }
-
-  private <Strategy_T extends Strategy> double withReplacementTrials(
-      Class<Strategy_T> clazz, int numTrials, Config config, int i) {
-    double res = 0;
-    for (int ign = 0; ign < numTrials; ++ign) {
-      res += withReplacementTrial(clazz, config, i);
+    // Every (position, trial) pair is its own trial
+    double[] res =
+        runTrials(
+                N * numTrials,
+                N,
+                (k, seed, mirrored) -> {
+                  double[] ret = new double[N];
+                  ret[k / numTrials] =
+                      withReplacementTrial(clazz, config, k / numTrials, seed, mirrored);
+                  return ret;
+                })
+            .totals();
+    for (int i = 0; i < N; ++i) {
+      res[i] /= numTrials;
     }
-    res /= numTrials;
     return res;
   }
 
   private <Strategy_T extends Strategy> double withReplacementTrial(
-      Class<Strategy_T> clazz, Config config, int i) {
+      Class<Strategy_T> clazz, Config config, int i, long seed, boolean mirrored) {
     // Initialize students
     List<Class<? extends Strategy>> withExtraStrategies = new ArrayList<>(strategies);
     withExtraStrategies.set(i, clazz);
-    return runTrial(withExtraStrategies, config)[i];
+    return runTrial(withExtraStrategies, config, seed, mirrored, only(i))[i];
+  }
+
+  // The score of clazz in each position i of room with clazz substituted at i,
+  // all on the market of one trial. This runs a whole trial per position;
+  // tournaments that can generate the market and collect the incumbents' moves
+  // once for every position override it.
+  protected double[] replacementTrial(
+      List<Class<? extends Strategy>> room,
+      Class<? extends Strategy> clazz,
+      Config config,
+      long seed,
+      boolean mirrored) {
+    double[] ret = new double[room.size()];
+    for (int i = 0; i < room.size(); ++i) {
+      List<Class<? extends Strategy>> replaced = new ArrayList<>(room);
+      replaced.set(i, clazz);
+      ret[i] = runTrial(replaced, config, seed, mirrored, only(i))[i];
+    }
+    return ret;
+  }
+
+  // The room's own scores on the market of one trial, then replacementTrial's.
+  // Tournaments that override replacementTrial should override this as well, so
+  // that both sides are scored on the same incumbent moves: a nondeterministic
+  // incumbent called once per side would add its own noise to the difference.
+  protected double[][] pairedReplacementTrial(
+      List<Class<? extends Strategy>> room,
+      Class<? extends Strategy> clazz,
+      Config config,
+      long seed,
+      boolean mirrored) {
+    return new double[][] {
+      runTrial(room, config, seed, mirrored), replacementTrial(room, clazz, config, seed, mirrored)
+    };
+  }
+
+  static BitSet only(int i) {
+    BitSet ret = new BitSet();
+    ret.set(i);
+    return ret;
+  }
+
+  // Paired comparison of clazz with each strategy it could replace. Trial t
+  // plays the room as it is and, on the same market, with clazz in each position
+  // in turn (see pairedReplacementTrial), so the difference at a position is
+  // free of market noise. Returns the mean difference (clazz minus incumbent) at
+  // each position and its standard error. With antithetic draws the error treats
+  // the two trials of a pair as independent, which overstates it when they are
+  // negatively correlated.
+  public <Strategy_T extends Strategy> double[][] pairedReplacementTrials(
+      Class<Strategy_T> clazz, int numTrials, Config config) {
+    final int N = strategies.size();
+    warmUp(withFirst(clazz), config);
+    double[] res =
+        runTrials(
+                numTrials,
+                2 * N,
+                (t, seed, mirrored) -> {
+                  double[][] paired =
+                      pairedReplacementTrial(strategies, clazz, config, seed, mirrored);
+                  double[] base = paired[0];
+                  double[] replaced = paired[1];
+                  double[] ret = new double[2 * N];
+                  for (int i = 0; i < N; ++i) {
+                    double diff = replaced[i] - base[i];
+                    ret[i] = diff;
+                    ret[N + i] = diff * diff;
+                  }
+                  return ret;
+                })
+            .totals();
+    double[][] ret = new double[2][N];
+    for (int i = 0; i < N; ++i) {
+      double mean = res[i] / numTrials;
+      double variance =
+          numTrials < 2 ? 0 : (res[N + i] - numTrials * mean * mean) / (numTrials - 1);
+      ret[0][i] = mean;
+      ret[1][i] =
+          numTrials < 2 ? Double.POSITIVE_INFINITY : Math.sqrt(Math.max(0, variance) / numTrials);
+    }
+    return ret;
   }
 
   public <Strategy_T extends Strategy> double bySelfTrials(
       Class<Strategy_T> clazz, int numTrials, int numStrategies, Config config) {
-    double sum = 0;
-    for (int i = 0; i < numTrials; ++i) {
-      sum += bySelfTrial(clazz, numStrategies, config);
+    List<Class<? extends Strategy>> studentClasses = new ArrayList<>();
+    for (int i = 0; i < numStrategies; ++i) {
+      studentClasses.add(clazz);
     }
-    return sum / numTrials;
+    warmUp(studentClasses, config);
+    final Trial trial = trialOf(studentClasses, config);
+    final UnaryOperator<double[]> average =
+        scores -> new double[] {Arrays.stream(scores).average().getAsDouble()};
+    ScoreSums sums =
+        runTrialsUntil(
+            numTrials,
+            1,
+            new int[] {0},
+            trial instanceof StagedTrial
+                ? ((StagedTrial<?, ?>) trial).then(average)
+                : (t, seed, mirrored) -> average.apply(trial.run(t, seed, mirrored)));
+    return sums.totals()[0] / sums.count();
   }
 
   public <Strategy_T extends Strategy> double bySelfTrial(
-      Class<Strategy_T> clazz, int numStrategies, Config config) {
+      Class<Strategy_T> clazz, int numStrategies, Config config, long seed, boolean mirrored) {
     List<Class<? extends Strategy>> studentClasses = new ArrayList<>();
     for (int i = 0; i < numStrategies; ++i) {
       studentClasses.add(clazz);
     }
 
-    return Arrays.stream(runTrial(studentClasses, config)).average().getAsDouble();
+    return Arrays.stream(runTrial(studentClasses, config, seed, mirrored))
+        .average()
+        .getAsDouble();
+  }
+
+  // A league of rooms of roomSize drawn from strategies, planned for `rounds`
+  // rounds. The plan has a seed of its own, derived from the tournament's.
+  public League newLeague(int roomSize, int rounds) {
+    League ret = new League(strategies.size(), roomSize, trialSeed(-2, 0));
+    ret.schedule(rounds);
+    return ret;
+  }
+
+  // Plays numTrials trials in every room of league and adds up each strategy's
+  // results. All the rooms' trials are one batch, so rooms are played in
+  // parallel as well as their trials. With common random numbers, trial t has
+  // the same market in every room.
+  public League.Standings leagueTrials(League league, int numTrials, Config config) {
+    List<ScoreSums> results = new ArrayList<>();
+    playRooms(league, results, numTrials, config);
+    return league.standings(results);
   }
 
-  public abstract double[] runTrial(List<Class<? extends Strategy>> strategies, Config config);
+  // As leagueTrials, and then races: while some strategies are not told apart
+  // from their neighbours in the ranking with the given confidence (see
+  // League.unresolved), plays another round of rooms made up of them, for at
+  // most maxRounds more rounds. The confidence covers every one of those
+  // checks, so a larger maxRounds asks more of each.
+  public League.Standings racingLeagueTrials(
+      League league,
+      int numTrials,
+      double confidence,
+      double tolerance,
+      int maxRounds,
+      Config config) {
+    List<ScoreSums> results = new ArrayList<>();
+    playRooms(league, results, numTrials, config);
+    League.Standings ret = league.standings(results);
+    for (int round = 0; round < maxRounds; ++round) {
+      BitSet unresolved = league.unresolved(ret, confidence, tolerance, maxRounds);
+      System.err.println("racing: " + unresolved.cardinality() + " strategies unresolved");
+      if (unresolved.isEmpty()) {
+        break;
+      }
+      league.schedule(1, unresolved);
+      playRooms(league, results, numTrials, config);
+      ret = league.standings(results);
+    }
+    return ret;
+  }
+
+  // As leagueTrials for a league planned for `rounds` rounds, but keeps every
+  // room's results in the file at path and reuses them on later runs with the
+  // same seed, setup and harness code (see configureFromProperties and
+  // Fingerprint.ofHarness); league must start out empty, as the plan is made
+  // from the rooms saved. A room is played again only if one of its strategies
+  // has changed (see Fingerprint) or left the pool, in which case it is topped
+  // up with someone else, and strategies new to the pool get rooms of their own.
+  // Refreshing a leaderboard after one submission changes therefore plays only
+  // the rooms it is in.
+  public League.Standings incrementalLeagueTrials(
+      String path, League league, int rounds, int numTrials, Config config) {
+    assert league.rooms().isEmpty() : "Expected a league with no rooms yet";
+    final Path file = Paths.get(path);
+    final String setup =
+        "harness "
+            + Fingerprint.ofHarness(getClass())
+            + ", rooms of "
+            + league.roomSize
+            + ", "
+            + numTrials
+            + " trials, "
+            + config
+            + (commonRandomNumbers ? ", common random numbers" : "")
+            + (antithetic ? ", antithetic" : "");
+    List<String> names = new ArrayList<>();
+    List<String> fingerprints = new ArrayList<>();
+    for (Class<? extends Strategy> clazz : strategies) {
+      names.add(clazz.getName());
+      fingerprints.add(Fingerprint.of(clazz));
+    }
+    List<ScoreSums> results = new ArrayList<>();
+    // rooms whose strategies are all still here first, so that whoever tops up
+    // the others is chosen knowing how much everyone has played
+    List<LeagueResults.Room> broken = new ArrayList<>();
+    for (LeagueResults.Room room : LeagueResults.load(file, getSeed(), setup)) {
+      int[] members = new int[room.names.size()];
+      boolean changed = false;
+      for (int i = 0; i < members.length; ++i) {
+        members[i] = names.indexOf(room.names.get(i));
+        if (members[i] < 0) {
+          broken.add(room);
+          break;
+        }
+        changed |= !fingerprints.get(members[i]).equals(room.fingerprints.get(i));
+      }
+      if (broken.contains(room)) {
+        continue;
+      }
+      league.keep(room.id, members);
+      results.add(changed ? null : room.sums);
+    }
+    for (LeagueResults.Room room : broken) {
+      int[] members = new int[room.names.size()];
+      for (int i = 0; i < members.length; ++i) {
+        members[i] = names.indexOf(room.names.get(i));
+      }
+      league.keep(room.id, members);
+      results.add(null);
+    }
+    for (BitSet behind = league.playedFewerThan(rounds);
+        !behind.isEmpty();
+        behind = league.playedFewerThan(rounds)) {
+      league.schedule(1, behind);
+    }
+    long reused = results.stream().filter(sums -> sums != null).count();
+    System.err.println(
+        "league: reusing " + reused + " of " + league.rooms().size() + " rooms from " + file);
+    playRooms(league, results, numTrials, config);
+
+    List<LeagueResults.Room> rooms = new ArrayList<>();
+    for (int r = 0; r < league.rooms().size(); ++r) {
+      List<String> roomNames = new ArrayList<>();
+      List<String> roomFingerprints = new ArrayList<>();
+      for (int i : league.rooms().get(r)) {
+        roomNames.add(names.get(i));
+        roomFingerprints.add(fingerprints.get(i));
+      }
+      rooms.add(new LeagueResults.Room(league.id(r), roomNames, roomFingerprints, results.get(r)));
+    }
+    LeagueResults.save(file, getSeed(), setup, rooms);
+    return league.standings(results);
+  }
+
+  // Plays the rooms of league that have no results yet, those past the end of
+  // results or null there, and fills theirs in
+  private void playRooms(League league, List<ScoreSums> results, int numTrials, Config config) {
+    while (results.size() < league.rooms().size()) {
+      results.add(null);
+    }
+    List<Integer> toPlay = new ArrayList<>();
+    List<List<Class<? extends Strategy>>> rooms = new ArrayList<>();
+    BitSet warm = new BitSet();
+    for (int r = 0; r < results.size(); ++r) {
+      if (results.get(r) != null) {
+        continue;
+      }
+      List<Class<? extends Strategy>> room = new ArrayList<>();
+      boolean cold = false;
+      for (int i : league.rooms().get(r)) {
+        room.add(strategies.get(i));
+        cold |= !warm.get(i);
+        warm.set(i);
+      }
+      // one room per strategy is enough to warm them all up
+      if (cold) {
+        warmUp(room, config);
+      }
+      toPlay.add(r);
+      rooms.add(room);
+    }
+    long[] ids = new long[toPlay.size()];
+    for (int k = 0; k < ids.length; ++k) {
+      ids[k] = league.id(toPlay.get(k));
+    }
+    List<ScoreSums> played = roomTrials(rooms, ids, numTrials, config);
+    for (int k = 0; k < ids.length; ++k) {
+      results.set(toPlay.get(k), played.get(k));
+    }
+  }
+
+  // The sums of numTrials trials in each room: each position's scores, then
+  // their squares, then the number of trials. Trial j of the room with id i
+  // has the seed of trial j of run -3 - i (runs -1 and -2 being warm-up and
+  // league planning), so a room plays the same trials whichever others it is
+  // played with; with common random numbers every room has the markets of the
+  // room with id 0.
+  List<ScoreSums> roomTrials(
+      List<List<Class<? extends Strategy>>> rooms, long[] ids, int numTrials, Config config) {
+    final int[] offsets = new int[rooms.size() + 1];
+    final Trial[] trials = new Trial[rooms.size()];
+    for (int r = 0; r < rooms.size(); ++r) {
+      offsets[r + 1] = offsets[r] + 2 * rooms.get(r).size() + 1;
+      trials[r] = trialOf(rooms.get(r), config);
+    }
+    ScoreSums sums =
+        runTrials(
+            rooms.size() * numTrials,
+            offsets[rooms.size()],
+            (t, batchSeed, batchMirrored) -> {
+              int r = t / numTrials;
+              int j = t % numTrials;
+              long run = -3 - (commonRandomNumbers ? 0 : ids[r]);
+              double[] scores =
+                  trials[r].run(
+                      t, trialSeed(run, antithetic ? j / 2 : j), antithetic && j % 2 == 1);
+              double[] ret = new double[offsets[rooms.size()]];
+              for (int i = 0; i < scores.length; ++i) {
+                ret[offsets[r] + i] = scores[i];
+                ret[offsets[r] + scores.length + i] = scores[i] * scores[i];
+              }
+              ret[offsets[r + 1] - 1] = 1;
+              return ret;
+            });
+    List<ScoreSums> ret = new ArrayList<>();
+    for (int r = 0; r < rooms.size(); ++r) {
+      ret.add(sums.slice(offsets[r], offsets[r + 1]));
+    }
+    return ret;
+  }
+
+  // All of a trial's randomness must come from `seed`, so that the same seed
+  // gives the same trial on any thread and in any order
+  public abstract double[] runTrial(
+      List<Class<? extends Strategy>> strategies, Config config, long seed);
+
+  // The antithetic partner of runTrial(strategies, config, seed): the same trial
+  // with every uniform draw u replaced by 1 - u. Tournaments that support
+  // antithetic draws override this and mirrorsDraws.
+  public double[] runTrial(
+      List<Class<? extends Strategy>> strategies, Config config, long seed, boolean mirrored) {
+    assert !mirrored : getClass().getName() + ": no mirrored trials";
+    return runTrial(strategies, config, seed);
+  }
+
+  // True if runTrial(..., true) gives mirrored trials, so antithetic draws work
+  protected boolean mirrorsDraws() {
+    return false;
+  }
+
+  // runTrial for callers that only look at some of the scores: those of the
+  // students in `needed` are as runTrial would give them, and the rest may be
+  // left 0. Tournaments that can skip work for the others override this.
+  public double[] runTrial(
+      List<Class<? extends Strategy>> strategies,
+      Config config,
+      long seed,
+      boolean mirrored,
+      BitSet needed) {
+    return runTrial(strategies, config, seed, mirrored);
+  }
 }
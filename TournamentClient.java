@@ -0,0 +1,96 @@
+// TournamentClient.java: runs a tournament job on a TournamentServer
+// COS 445 SD1, Spring 2019
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Usage: java TournamentClient [-ea] [-Dkey=value ...] MainClass args...
+// e.g. java TournamentClient -ea -Dworkers=4 Admissions students.txt
+// Sends the job to the server on -Dsocket (default .sd1.sock), copies what it
+// prints to stdout and stderr, and exits with its status. The server cannot
+// change directory, so arguments naming existing files are sent as absolute
+// paths.
+public class TournamentClient {
+  public static void main(String[] args) throws IOException {
+    boolean assertions = false;
+    Map<String, String> properties = new LinkedHashMap<>();
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("-"); ++i) {
+      if (args[i].equals("-ea") || args[i].equals("-enableassertions")) {
+        assertions = true;
+      } else if (args[i].startsWith("-D")) {
+        String[] kv = args[i].substring(2).split("=", 2);
+        properties.put(kv[0], kv.length > 1 ? kv[1] : "");
+      } else {
+        throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    if (i == args.length) {
+      throw new IllegalArgumentException("Expected a main class");
+    }
+    String mainClass = args[i++];
+    List<String> mainArgs = new ArrayList<>();
+    for (; i < args.length; ++i) {
+      File file = new File(args[i]);
+      mainArgs.add(file.exists() ? file.getAbsolutePath() : args[i]);
+    }
+
+    UnixDomainSocketAddress address =
+        UnixDomainSocketAddress.of(System.getProperty("socket", ".sd1.sock"));
+    SocketChannel connection;
+    try {
+      connection = SocketChannel.open(StandardProtocolFamily.UNIX);
+      connection.connect(address);
+    } catch (IOException e) {
+      System.err.println(
+          "No tournament server at " + address.getPath() + "; start one with make serve");
+      System.exit(2);
+      return;
+    }
+    try (connection) {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)));
+      out.writeBoolean(assertions);
+      out.writeInt(properties.size());
+      for (Map.Entry<String, String> e : properties.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeUTF(e.getValue());
+      }
+      out.writeUTF(mainClass);
+      out.writeInt(mainArgs.size());
+      for (String arg : mainArgs) {
+        out.writeUTF(arg);
+      }
+      out.flush();
+
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection)));
+      while (true) {
+        byte stream = in.readByte();
+        int length = in.readInt();
+        if (stream == TournamentServer.EXIT) {
+          System.out.flush();
+          System.exit(length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        PrintStream target = stream == TournamentServer.OUT ? System.out : System.err;
+        target.write(bytes, 0, length);
+        target.flush();
+      }
+    }
+  }
+}
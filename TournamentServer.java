@@ -0,0 +1,277 @@
+// TournamentServer.java: a long-lived JVM that runs tournament jobs for TournamentClient
+// COS 445 SD1, Spring 2019
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.StandardProtocolFamily;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Usage: java [options] TournamentServer
+// Listens on the Unix socket -Dsocket (default .sd1.sock) and runs one job at a
+// time: a main class such as Admissions with its arguments and -D properties,
+// with everything it prints streamed back to the client. Startup, class loading
+// and JIT warm-up are paid once, not per run.
+//
+// Jobs run in a class loader over this JVM's class path, which is kept (and
+// stays warm) until a .class file on the path changes; then the next job gets a
+// fresh loader, so recompiled strategies are always picked up. Options read
+// once per JVM, such as -Djava.util.Arrays.useLegacyMergeSort, must be given to
+// the server. A job must not call System.exit. After each job the server stops
+// the worker processes its tournaments started and takes its ThreadOutput off
+// System.out. Strategy threads that a job gave up on but that are still running
+// cannot be stopped, so if there are any the server exits once the job's reply
+// is sent, rather than run every later job beside them; start it again.
+//
+// A request is
+//   boolean assertions, int properties, that many pairs of UTF key and value,
+//   UTF main class, int arguments, that many UTF arguments
+// and the reply a series of frames
+//   byte stream (OUT or ERR), int length, bytes; and finally EXIT, int status
+public class TournamentServer {
+  static final byte EXIT = 0, OUT = 1, ERR = 2;
+
+  // Where System.out or System.err currently goes. They are installed once, so
+  // that anything that wraps them (like ThreadOutput) follows each new job.
+  private static class Relay extends OutputStream {
+    private volatile OutputStream target;
+
+    Relay(OutputStream target) {
+      this.target = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      target.write(b);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+      target.write(buf, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target.flush();
+    }
+  }
+
+  // Writes everything as frames of one stream on the shared connection
+  private static class Framed extends OutputStream {
+    private final DataOutputStream client;
+    private final byte stream;
+
+    Framed(DataOutputStream client, byte stream) {
+      this.client = client;
+      this.stream = stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+      synchronized (client) {
+        client.writeByte(stream);
+        client.writeInt(len);
+        client.write(buf, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (client) {
+        client.flush();
+      }
+    }
+  }
+
+  private static Relay out;
+  private static Relay err;
+  private static URLClassLoader loader = null;
+  private static long loadedStamp = 0;
+
+  public static void main(String[] args) throws IOException {
+    Path socket = Paths.get(System.getProperty("socket", ".sd1.sock"));
+    Files.deleteIfExists(socket);
+    out = new Relay(new FileOutputStream(FileDescriptor.out));
+    err = new Relay(new FileOutputStream(FileDescriptor.err));
+    final OutputStream serverErr = err.target;
+    System.setOut(new PrintStream(out, true));
+    System.setErr(new PrintStream(err, true));
+    try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socket));
+      socket.toFile().deleteOnExit();
+      new PrintStream(serverErr, true).println("tournament server: listening on " + socket);
+      while (true) {
+        int runaways = 0;
+        try (SocketChannel connection = server.accept()) {
+          runaways = serve(connection);
+        } catch (IOException e) {
+          new PrintStream(serverErr, true).println("tournament server: " + e);
+        }
+        if (runaways > 0) {
+          new PrintStream(serverErr, true)
+              .println("tournament server: " + runaways + " runaway strategy calls; exiting");
+          System.exit(1);
+        }
+      }
+    }
+  }
+
+  // Runs one job and returns the number of its strategy calls still running
+  private static int serve(SocketChannel connection) throws IOException {
+    DataInputStream in = new DataInputStream(Channels.newInputStream(connection));
+    DataOutputStream client =
+        new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)));
+    boolean assertions = in.readBoolean();
+    Map<String, String> properties = new HashMap<>();
+    for (int i = in.readInt(); i > 0; --i) {
+      properties.put(in.readUTF(), in.readUTF());
+    }
+    String mainClass = in.readUTF();
+    String[] mainArgs = new String[in.readInt()];
+    for (int i = 0; i < mainArgs.length; ++i) {
+      mainArgs[i] = in.readUTF();
+    }
+
+    OutputStream prevOut = out.target;
+    OutputStream prevErr = err.target;
+    Map<String, String> prevProperties = new HashMap<>();
+    for (String key : properties.keySet()) {
+      prevProperties.put(key, System.getProperty(key));
+    }
+    int status = 0;
+    int runaways = 0;
+    try {
+      out.target = new Framed(client, OUT);
+      err.target = new Framed(client, ERR);
+      properties.forEach(System::setProperty);
+      Class<?> main = Class.forName(mainClass, true, loader(assertions));
+      Method method = main.getMethod("main", String[].class);
+      method.invoke(null, (Object) mainArgs);
+    } catch (InvocationTargetException e) {
+      e.getCause().printStackTrace();
+      status = 1;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      e.printStackTrace();
+      status = 1;
+    } finally {
+      runaways = endJob();
+      System.out.flush();
+      System.err.flush();
+      out.target = prevOut;
+      err.target = prevErr;
+      prevProperties.forEach(
+          (key, value) -> {
+            if (value == null) {
+              System.clearProperty(key);
+            } else {
+              System.setProperty(key, value);
+            }
+          });
+    }
+    synchronized (client) {
+      client.writeByte(EXIT);
+      client.writeInt(status);
+      client.flush();
+    }
+    return runaways;
+  }
+
+  // Cleans up after a job, through the harness classes of its loader: stops
+  // its tournaments' worker processes and restores System.out. Returns the
+  // number of strategy calls it gave up on that are still running, after
+  // telling the client about them.
+  private static int endJob() {
+    if (loader == null) {
+      return 0;
+    }
+    try {
+      invoke("Tournament", "closeAll");
+      invoke("ThreadOutput", "uninstall");
+      int runaways = (Integer) invoke("Tournament", "runawayCalls");
+      if (runaways > 0) {
+        System.err.println(
+            "tournament server: "
+                + runaways
+                + " strategy calls are still running after being cut off;"
+                + " the server will exit, so start it again");
+      }
+      return runaways;
+    } catch (ReflectiveOperationException e) {
+      e.printStackTrace();
+      return 0;
+    }
+  }
+
+  private static Object invoke(String className, String methodName)
+      throws ReflectiveOperationException {
+    Method method = Class.forName(className, true, loader).getDeclaredMethod(methodName);
+    method.setAccessible(true);
+    return method.invoke(null);
+  }
+
+  // The job class loader, replaced if any class on the class path has changed
+  // or assertions were switched
+  private static ClassLoader loader(boolean assertions) throws IOException {
+    long stamp = classPathStamp() * 2 + (assertions ? 1 : 0);
+    if (loader == null || stamp != loadedStamp) {
+      if (loader != null) {
+        loader.close();
+      }
+      List<URL> urls = new ArrayList<>();
+      for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+        urls.add(Paths.get(entry).toUri().toURL());
+      }
+      loader = new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getPlatformClassLoader());
+      loader.setDefaultAssertionStatus(assertions);
+      loadedStamp = stamp;
+    }
+    return loader;
+  }
+
+  // Changes whenever a .class file in a class path directory is added, removed or
+  // rewritten; the order the files are listed in does not matter
+  private static long classPathStamp() throws IOException {
+    long stamp = 0;
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      Path path = Paths.get(entry);
+      if (!Files.isDirectory(path)) {
+        stamp = stamp * 31 + path.toFile().lastModified();
+        continue;
+      }
+      try (Stream<Path> files = Files.walk(path)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          if (file.toString().endsWith(".class")) {
+            stamp += Tournament.mix(file.hashCode() * 31L + file.toFile().lastModified());
+          }
+        }
+      }
+    }
+    return stamp;
+  }
+}
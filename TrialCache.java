@@ -0,0 +1,214 @@
+// TrialCache.java: trial scores on disk, keyed by everything that determines them
+// COS 445 SD1, Spring 2019
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// With its seed fixed, a trial's scores depend only on the bytecode of the
+// strategies in the room, in order, that of the harness (the tournament and the
+// classes it uses), the config and the seed itself, so a trial played once need
+// never be played again: not by a rerun, another run mode or another process.
+// Each trial is a small file named by a hash of all that, under a directory
+// shared by everyone who uses the cache. Reading a file marks it as recently
+// used, and once the files take up more than the cap the least recently used
+// are deleted, down to 90% of it. Marking a file is a write to the disk, so a
+// hit only marks a file not marked in the last few minutes; the order of use is
+// that coarse. What counts against the cap is the space on disk: a trial is a
+// hundred bytes or so, but takes up at least a whole block, as does each of the
+// subdirectories. Files are written to a temporary name and moved into place,
+// so readers never see half a trial.
+class TrialCache {
+  // how long a file marked as used stays marked before a hit marks it again
+  private static final long MARK_MS = 5 * 60 * 1000;
+
+  private final Path dir;
+  private final long capBytes;
+  private final long blockBytes;
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  TrialCache(Path dir, long capBytes) {
+    this.dir = dir;
+    this.capBytes = capBytes;
+    try {
+      Files.createDirectories(dir);
+      blockBytes = blockSize(dir);
+      bytes.addAndGet(blockBytes * subdirectories());
+      for (Path file : entries()) {
+        bytes.addAndGet(onDisk(Files.size(file)));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(dir + ": trial cache", e);
+    }
+  }
+
+  // SHA-256 of the parts, as hex
+  static String hash(List<String> parts) {
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      for (String part : parts) {
+        sha.update(part.getBytes(StandardCharsets.UTF_8));
+        sha.update((byte) 0);
+      }
+      StringBuilder ret = new StringBuilder();
+      for (byte b : sha.digest()) {
+        ret.append(String.format("%02x", b));
+      }
+      return ret.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-256", e);
+    }
+  }
+
+  // The file of the trial with this seed in the room with this hash
+  private Path file(String room, long seed, boolean mirrored) {
+    String name = room + "-" + Long.toHexString(seed) + (mirrored ? "-m" : "");
+    return dir.resolve(room.substring(0, 2)).resolve(name);
+  }
+
+  // The scores of that trial, or null if it is not cached
+  double[] get(String room, long seed, boolean mirrored) {
+    Path file = file(room, seed, mirrored);
+    try {
+      byte[] bytes = Files.readAllBytes(file);
+      long now = System.currentTimeMillis();
+      if (now - Files.getLastModifiedTime(file).toMillis() > MARK_MS) {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      double[] ret = new double[in.readInt()];
+      for (int i = 0; i < ret.length; ++i) {
+        ret[i] = in.readDouble();
+      }
+      hits.incrementAndGet();
+      return ret;
+    } catch (NoSuchFileException e) {
+      // not cached, or evicted meanwhile
+      misses.incrementAndGet();
+      return null;
+    } catch (IOException e) {
+      throw new RuntimeException(file + ": read cached trial", e);
+    }
+  }
+
+  void put(String room, long seed, boolean mirrored, double[] scores) {
+    Path file = file(room, seed, mirrored);
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(buf)) {
+      out.writeInt(scores.length);
+      for (double score : scores) {
+        out.writeDouble(score);
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    long added = onDisk(buf.size());
+    try {
+      if (!Files.isDirectory(file.getParent())) {
+        Files.createDirectories(file.getParent());
+        added += blockBytes;
+      }
+      Path tmp = Files.createTempFile(file.getParent(), "trial", ".tmp");
+      Files.write(tmp, buf.toByteArray());
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new RuntimeException(file + ": cache trial", e);
+    }
+    if (bytes.addAndGet(added) > capBytes) {
+      evict();
+    }
+  }
+
+  // Deletes the least recently used files until they fit in 90% of the cap
+  private synchronized void evict() {
+    if (bytes.get() <= capBytes) {
+      return;
+    }
+    try {
+      List<Path> files = new ArrayList<>();
+      List<FileTime> used = new ArrayList<>();
+      List<Long> sizes = new ArrayList<>();
+      long total = blockBytes * subdirectories();
+      for (Path file : entries()) {
+        try {
+          used.add(Files.getLastModifiedTime(file));
+          sizes.add(onDisk(Files.size(file)));
+        } catch (NoSuchFileException e) {
+          // evicted by another process meanwhile
+          used.subList(files.size(), used.size()).clear();
+          continue;
+        }
+        files.add(file);
+        total += sizes.get(sizes.size() - 1);
+      }
+      List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < files.size(); ++i) {
+        order.add(i);
+      }
+      order.sort((a, b) -> used.get(a).compareTo(used.get(b)));
+      for (int i : order) {
+        if (total <= capBytes * 9 / 10) {
+          break;
+        }
+        Files.deleteIfExists(files.get(i));
+        total -= sizes.get(i);
+      }
+      bytes.set(total);
+    } catch (IOException e) {
+      throw new RuntimeException(dir + ": evict cached trials", e);
+    }
+  }
+
+  // The block size of the file store dir is on, or a usual one if it will not say
+  static long blockSize(Path dir) throws IOException {
+    try {
+      return Math.max(1, Files.getFileStore(dir).getBlockSize());
+    } catch (UnsupportedOperationException e) {
+      return 4096; // the usual
+    }
+  }
+
+  // Space a file of this size takes up on disk, in whole blocks
+  private long onDisk(long size) {
+    return Math.max(1, (size + blockBytes - 1) / blockBytes) * blockBytes;
+  }
+
+  private long subdirectories() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(Files::isDirectory).count();
+    }
+  }
+
+  private List<Path> entries() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files
+          .filter(Files::isRegularFile)
+          .filter(file -> !file.getFileName().toString().endsWith(".tmp"))
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "trial cache %s: %d hits, %d misses, %.1f MB", dir, hits.get(), misses.get(),
+        bytes.get() / 1e6);
+  }
+}
@@ -0,0 +1,281 @@
+// WorkerPool.java: long-lived worker JVMs that run strategy calls out of process
+// COS 445 SD1, Spring 2019
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+// Each worker is a JVM started once and fed requests over its stdin; replies come
+// back on its stdout. Frames are
+//   request:  long id, int length, payload
+//   reply:    long id, byte flags, int length, payload
+// so one worker can run several calls at once. Calls are routed by key (the
+// strategy's class name), so a strategy's heap, runaway threads and static state
+// stay inside the JVMs serving it. A worker that has leaked threads asks to be
+// retired, and the pool starts a fresh one in its slot. Several strategies may
+// share a worker, so when one call has to be stopped by killing its worker, the
+// others it was running are sent again to a fresh one rather than failed: only
+// the call that was stopped counts against its strategy.
+class WorkerPool {
+  static final byte RETIRE = 1;
+
+  private final List<String> command;
+  private final Worker[] slots;
+  private final Map<String, Integer> routes = new ConcurrentHashMap<>();
+  // kills the workers if the harness exits without closing the pool
+  private final Thread shutdownHook = new Thread(this::killAll);
+  private volatile boolean closed = false;
+
+  WorkerPool(String mainClass, int size, List<String> jvmArgs) {
+    assert size >= 1 : "Need at least one worker process, got " + size;
+    command = new ArrayList<>();
+    command.add(
+        ProcessHandle.current()
+            .info()
+            .command()
+            .orElse(System.getProperty("java.home") + "/bin/java"));
+    command.addAll(jvmArgs);
+    // strategies sort with the same settings as the harness
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (arg.equals("-ea") || arg.startsWith("-Djava.util.Arrays.useLegacyMergeSort")) {
+        command.add(arg);
+      }
+    }
+    // and run the same build of them
+    for (String key : List.of("compileStrategies", "strategyCache", "strategyCacheMb")) {
+      String value = System.getProperty(key);
+      if (value != null) {
+        command.add("-D" + key + "=" + value);
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(mainClass);
+    slots = new Worker[size];
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  int size() {
+    return slots.length;
+  }
+
+  // Thrown to the other calls in a worker that was killed to stop one call
+  private static class KilledForAnother extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    KilledForAnother() {
+      super("worker process killed to stop another call");
+    }
+  }
+
+  // Sends request to the worker serving key and waits for its reply. If the
+  // caller is interrupted (a timeout or a cut-off) the worker is killed and
+  // replaced, since nothing else reliably stops a strategy stuck in a loop.
+  byte[] call(String key, byte[] request) throws InterruptedException {
+    int slot = routes.computeIfAbsent(key, k -> routes.size() % slots.length);
+    while (true) {
+      Worker worker = worker(slot);
+      CompletableFuture<byte[]> reply = worker.send(request);
+      try {
+        return reply.get();
+      } catch (InterruptedException e) {
+        worker.kill();
+        throw e;
+      } catch (ExecutionException e) {
+        if (!(e.getCause() instanceof KilledForAnother)) {
+          throw new RuntimeException(key + ": worker process", e.getCause());
+        }
+        // not this call's doing: send it again, to a fresh worker
+      }
+    }
+  }
+
+  private synchronized Worker worker(int slot) {
+    if (closed) {
+      throw new RuntimeException("worker process: pool closed");
+    }
+    if (slots[slot] == null || !slots[slot].usable()) {
+      if (slots[slot] != null) {
+        slots[slot].retire();
+      }
+      slots[slot] = new Worker(slot);
+    }
+    return slots[slot];
+  }
+
+  // Kills the workers and drops the shutdown hook, which would otherwise keep
+  // the pool (and whatever loaded it) alive until the JVM exits
+  void close() {
+    closed = true;
+    killAll();
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // already shutting down, and the hook is killing them anyway
+    }
+  }
+
+  private synchronized void killAll() {
+    for (Worker worker : slots) {
+      if (worker != null) {
+        worker.kill();
+      }
+    }
+  }
+
+  private class Worker {
+    private final Process process;
+    private final DataOutputStream toWorker;
+    private final Map<Long, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private volatile boolean retiring = false;
+    private volatile boolean killed = false;
+
+    Worker(int slot) {
+      try {
+        process =
+            new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+      } catch (IOException e) {
+        throw new RuntimeException("worker process: start", e);
+      }
+      toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      Thread reader = Tournament.daemon(this::readReplies);
+      reader.setName("worker " + slot + " reader");
+      reader.start();
+    }
+
+    boolean usable() {
+      return !retiring && process.isAlive();
+    }
+
+    CompletableFuture<byte[]> send(byte[] request) {
+      CompletableFuture<byte[]> reply = new CompletableFuture<>();
+      long id = ids.getAndIncrement();
+      pending.put(id, reply);
+      try {
+        synchronized (toWorker) {
+          toWorker.writeLong(id);
+          toWorker.writeInt(request.length);
+          toWorker.write(request);
+          toWorker.flush();
+        }
+      } catch (IOException e) {
+        pending.remove(id);
+        retiring = true;
+        reply.completeExceptionally(killed ? new KilledForAnother() : e);
+      }
+      if (!process.isAlive() && pending.remove(id) != null) {
+        reply.completeExceptionally(exited());
+      }
+      return reply;
+    }
+
+    private IOException exited() {
+      return killed ? new KilledForAnother() : new EOFException("worker process exited");
+    }
+
+    private void readReplies() {
+      try (DataInputStream fromWorker =
+          new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+        while (true) {
+          long id = fromWorker.readLong();
+          byte flags = fromWorker.readByte();
+          byte[] payload = new byte[fromWorker.readInt()];
+          fromWorker.readFully(payload);
+          if ((flags & RETIRE) != 0) {
+            retiring = true;
+          }
+          CompletableFuture<byte[]> reply = pending.remove(id);
+          if (reply != null) {
+            reply.complete(payload);
+          }
+        }
+      } catch (IOException e) {
+        // the worker exited or was killed; fail whatever it still owed us
+        retiring = true;
+        for (CompletableFuture<byte[]> reply : pending.values()) {
+          reply.completeExceptionally(exited());
+        }
+        pending.clear();
+      }
+    }
+
+    // Stops taking new calls; the worker exits once it has answered the ones it has
+    void retire() {
+      retiring = true;
+      try {
+        toWorker.close();
+      } catch (IOException e) {
+        process.destroyForcibly();
+      }
+    }
+
+    void kill() {
+      retiring = true;
+      killed = true;
+      process.destroyForcibly();
+    }
+  }
+
+  // Worker side: answers framed requests from stdin with handler until stdin
+  // closes, each request on its own thread. Stdout belongs to the
+  // protocol, so System.out is sent nowhere for the life of the worker.
+  static void serve(Function<byte[], byte[]> handler, BooleanSupplier retiring) {
+    final DataOutputStream toHarness =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    ExecutorService requests = Executors.newCachedThreadPool(Tournament::daemon);
+    try (DataInputStream fromHarness = new DataInputStream(new BufferedInputStream(System.in))) {
+      while (true) {
+        final long id = fromHarness.readLong();
+        final byte[] payload = new byte[fromHarness.readInt()];
+        fromHarness.readFully(payload);
+        requests.submit(
+            () -> {
+              byte[] reply = handler.apply(payload);
+              synchronized (toHarness) {
+                try {
+                  toHarness.writeLong(id);
+                  toHarness.writeByte(retiring.getAsBoolean() ? RETIRE : 0);
+                  toHarness.writeInt(reply.length);
+                  toHarness.write(reply);
+                  toHarness.flush();
+                } catch (IOException e) {
+                  System.exit(1);
+                }
+              }
+            });
+      }
+    } catch (IOException e) {
+      // stdin closed: the harness is done with us
+    }
+    requests.shutdown();
+    try {
+      requests.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      // exiting anyway
+    }
+    // leaked strategy threads die with the JVM
+    System.exit(0);
+  }
+}